@@ -0,0 +1,38 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheStrategyRegistry;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+// 订阅缓存失效频道，某个实例删除了缓存，所有实例都删除自己的本地缓存
+// 同时订阅布隆过滤器新增频道、缓存策略切换频道
+@Configuration
+public class CacheInvalidationConfig {
+
+    @Bean
+    public RedisMessageListenerContainer cacheInvalidationListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                           CacheClient cacheClient,
+                                                                           CacheStrategyRegistry cacheStrategyRegistry) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        // 其他实例新增了数据，更新本实例的布隆过滤器
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.addToBloomFilterLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_BLOOM_CHANNEL));
+        // 其他实例切换了缓存策略，本实例跟着切换
+        container.addMessageListener(
+                (message, pattern) -> cacheStrategyRegistry.onSwitched(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RedisConstants.CACHE_STRATEGY_CHANNEL));
+        return container;
+    }
+}
@@ -0,0 +1,154 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// CacheClient的配置，对应application.yaml中的hmdp.cache
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    // 本地一级缓存，按key前缀配置，没有配置的前缀不走本地缓存
+    private List<LocalSpec> local = new ArrayList<>();
+
+    // 按key前缀的redis缓存配置，没有配置的前缀使用默认值
+    private List<PrefixSpec> prefixes = new ArrayList<>();
+
+    // 布隆过滤器，防止缓存穿透
+    private BloomSpec bloom = new BloomSpec();
+
+    // 逻辑过期的异步重建线程池
+    private RebuildSpec rebuild = new RebuildSpec();
+
+    // 异步查询缓存未命中时查询数据库的线程池
+    private AsyncSpec async = new AsyncSpec();
+
+    // 启动时的店铺缓存和GEO预热
+    private WarmUpSpec warmUp = new WarmUpSpec();
+
+    // 热点key探测，热点key自动放入本地缓存
+    private HotKeySpec hotKey = new HotKeySpec();
+
+    // 缓存失效的本地消息表
+    private OutboxSpec outbox = new OutboxSpec();
+
+    // 本地缓存和店铺数据的快照文件，重启后直接加载
+    private SnapshotSpec snapshot = new SnapshotSpec();
+
+    // 可以修改缓存配置（例如PUT /cache/strategies）的用户id，为空时所有人都不能修改
+    private List<Long> adminUserIds = new ArrayList<>();
+
+    @Data
+    public static class LocalSpec {
+        // key前缀，例如 jcwang-common:cache:shop:
+        private String prefix;
+        // 最多缓存多少个key，超过按LRU淘汰
+        private int maxSize = 1000;
+        // 本地缓存的有效期，秒
+        private long ttlSeconds = 10;
+    }
+
+    @Data
+    public static class PrefixSpec {
+        private String prefix;
+        // 缓存值的编码方式，json或binary
+        private String codec = "json";
+        // 过期时间随机增加的比例，0.1表示在ttl基础上随机增加0~10%，防止同时写入的key一起过期
+        private double ttlJitter = 0;
+        // 批量写入逻辑过期的key时，逻辑过期时间再随机增加0~spreadSeconds秒
+        private long spreadSeconds = 0;
+        // 编码后超过这么多字节的值用Deflate压缩后再存，0表示不压缩
+        private int compressThreshold = 0;
+        // @HmdpCacheable使用的缓存策略，为空时使用注解上的策略，运行时可以通过/cache/strategies修改
+        private String strategy;
+    }
+
+    @Data
+    public static class BloomSpec {
+        // 预计放入的id个数
+        private long expectedInsertions = 1000000;
+        // 误判率
+        private double fpp = 0.01;
+        // 布隆过滤器误判时，在本地记住数据库里也没有的id，避免反复查库
+        private int negativeMaxSize = 10000;
+        private long negativeTtlSeconds = 120;
+        // 定时补充新增id的间隔，新增通知丢了的id最多被误拦截这么久
+        private long catchUpIntervalMillis = 10000;
+    }
+
+    @Data
+    public static class RebuildSpec {
+        // 重建线程数，同时打到数据库的重建查询不会超过这个数
+        private int threads = 10;
+        // 最多排队的重建任务数，超过的直接拒绝，继续返回旧数据
+        private int queueCapacity = 1000;
+        // 应用关闭时，等待已排队的任务执行完的最长时间，秒
+        private long drainSeconds = 10;
+    }
+
+    @Data
+    public static class AsyncSpec {
+        // 查询数据库的线程数
+        private int threads = 10;
+        // 最多排队的查询数，超过的直接失败，不会在内存中无限堆积
+        private int queueCapacity = 1000;
+        // 应用关闭时，等待已提交的查询执行完的最长时间，秒
+        private long drainSeconds = 10;
+    }
+
+    @Data
+    public static class WarmUpSpec {
+        private boolean enabled = true;
+        // 每次从数据库查询的店铺数，也是一次pipeline写入的key数
+        private int pageSize = 500;
+        // 同时执行的pipeline数
+        private int parallelism = 4;
+        // 每秒最多写入的店铺数，防止预热把redis打满
+        private int maxShopsPerSecond = 5000;
+    }
+
+    @Data
+    public static class HotKeySpec {
+        private boolean enabled = true;
+        // 一个窗口内访问次数超过threshold认为是热点key，计数每个窗口减半
+        private int threshold = 100;
+        private long windowSeconds = 10;
+        // 最多同时有多少个热点key
+        private int maxHotKeys = 1000;
+        // 热点key在本地缓存中的有效期，秒
+        private long localTtlSeconds = 5;
+        // count-min sketch的大小
+        private int sketchDepth = 4;
+        private int sketchWidth = 8192;
+    }
+
+    @Data
+    public static class OutboxSpec {
+        // 定时处理消息的间隔，毫秒，事务提交后也会马上处理一次
+        private long relayIntervalMillis = 1000;
+        // 一次删除的缓存key数
+        private int batchSize = 100;
+        // 删除失败后最多重试的次数
+        private int maxRetries = 10;
+        // 重试间隔按指数增长，最大值，秒
+        private long maxBackoffSeconds = 300;
+    }
+
+    @Data
+    public static class SnapshotSpec {
+        private boolean enabled = true;
+        // 快照文件所在的目录，每个实例一份，放在本地磁盘
+        private String dir = "cache-snapshot";
+        // 本地缓存写快照的间隔，秒，应用关闭时也会写一次
+        private long intervalSeconds = 60;
+        // 超过这个时间的快照不再加载，秒，加载的数据都会在后台按版本号核对，这里只是不加载太旧的快照
+        private long maxAgeSeconds = 1800;
+        // 加载后在后台核对版本号，一次MGET的key数
+        private int reconcileBatchSize = 500;
+    }
+}
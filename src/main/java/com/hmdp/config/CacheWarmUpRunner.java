@@ -0,0 +1,200 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheSnapshot;
+import com.hmdp.utils.CacheSnapshotManager;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 启动时预热店铺缓存（逻辑过期）和店铺GEO，逻辑过期没有预热的店铺会直接返回null
+// 按id分页查询数据库，每一页一次pipeline写入，多页并行，按配置限速
+// 预热期间端口已经打开，请求可能已经进来（只有就绪探针要等ApplicationRunner执行完），滚动发布时其他实例也一直在处理请求，
+// 所以预热不覆盖redis中已经存在的key，只补上没有的
+// 每一页先只查询id，读取版本号之后再查询完整数据，写入时按版本号比较，不会覆盖预热期间被修改的店铺
+// 有上一次的店铺快照时，缓存版本号没变的店铺直接用快照中的数据，变了的和新增的再查询完整数据
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private CacheSnapshotManager cacheSnapshotManager;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        CacheProperties.WarmUpSpec spec = cacheProperties.getWarmUp();
+        if (!spec.isEnabled()) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        int total = shopMapper.selectCount(null);
+        log.info("开始预热店铺缓存，共{}个店铺", total);
+
+        ExecutorService executor = Executors.newFixedThreadPool(spec.getParallelism());
+        // 控制同时在写的页数，查询数据库不会比写redis快太多，避免把整张表读进内存
+        Semaphore inFlight = new Semaphore(spec.getParallelism());
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong failed = new AtomicLong();
+        CacheSnapshot catalog = cacheSnapshotManager.openCatalog();
+        AtomicLong fromSnapshot = new AtomicLong();
+        // 这次预热的店铺，写入新的快照，已经是编码后的，比Shop对象小得多
+        List<CacheSnapshot.Entry> catalogEntries = Collections.synchronizedList(new ArrayList<>(total));
+        try {
+            long lastId = 0;
+            int submitted = 0;
+            while (true) {
+                // 1 按id游标分页查询，不用offset，越往后越慢；先只查id
+                QueryWrapper<Shop> wrapper = new QueryWrapper<Shop>()
+                        .select("id")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + spec.getPageSize());
+                List<Shop> page = shopMapper.selectList(wrapper);
+                if (page.isEmpty()) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getId();
+                // 读取完整数据之前读取版本号，写入时版本号变了（期间店铺被修改过）的不写，和缓存重建一样
+                Map<String, String> versions = cacheClient.readVersions(keysOf(page));
+                List<Shop> shops = null == catalog ? loadShops(page) : fromCatalog(catalog, page, versions, fromSnapshot);
+
+                // 2 限速，按已提交的数量算出最早能提交这一页的时间
+                submitted += shops.size();
+                long earliest = begin + submitted * 1000L / Math.max(1, spec.getMaxShopsPerSecond());
+                long wait = earliest - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+
+                // 3 并行写入redis
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        writePage(shops, versions, catalogEntries);
+                        int count = done.addAndGet(shops.size());
+                        log.info("店铺缓存预热进度 {}/{}", count, total);
+                    } catch (Exception e) {
+                        failed.addAndGet(shops.size());
+                        log.error("店铺缓存预热失败，id: {} ~ {}", shops.get(0).getId(), shops.get(shops.size() - 1).getId(), e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.MINUTES);
+        }
+        log.info("店铺缓存预热完成，成功{}个（来自快照{}个），失败{}个，耗时{}ms",
+                done.get(), fromSnapshot.get(), failed.get(), System.currentTimeMillis() - begin);
+        // 有失败的页时快照不完整，保留上一次的
+        if (failed.get() == 0) {
+            cacheSnapshotManager.writeCatalog(catalogEntries);
+        }
+    }
+
+    private static List<String> keysOf(List<Shop> page) {
+        List<String> keys = new ArrayList<>(page.size());
+        for (Shop shop : page) {
+            keys.add(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        }
+        return keys;
+    }
+
+    private List<Shop> loadShops(List<Shop> page) {
+        List<Long> ids = new ArrayList<>(page.size());
+        for (Shop shop : page) {
+            ids.add(shop.getId());
+        }
+        return shopMapper.selectBatchIds(ids);
+    }
+
+    // 缓存版本号和快照中一样的店铺直接从快照解码，其余的按id一次查询数据库
+    private List<Shop> fromCatalog(CacheSnapshot catalog, List<Shop> page, Map<String, String> versions, AtomicLong fromSnapshot) {
+        List<Shop> shops = new ArrayList<>(page.size());
+        List<Long> reloadIds = new ArrayList<>();
+        for (Shop shop : page) {
+            String key = RedisConstants.CACHE_SHOP_KEY + shop.getId();
+            CacheSnapshot.Record record = catalog.get(key);
+            Shop cached = null != record && record.getVersion() == versionOf(versions, key)
+                    ? cacheSnapshotManager.decode(record) : null;
+            if (null != cached) {
+                shops.add(cached);
+            } else {
+                reloadIds.add(shop.getId());
+            }
+        }
+        fromSnapshot.addAndGet(shops.size());
+        if (!reloadIds.isEmpty()) {
+            shops.addAll(shopMapper.selectBatchIds(reloadIds));
+        }
+        return shops;
+    }
+
+    // 店铺快照的版本号是缓存的版本号（见CacheClient.readVersions），店铺每次修改后删除缓存时加一
+    // 不用更新时间，update_time只精确到秒，同一秒内的两次修改比较不出来
+    private static long versionOf(Map<String, String> versions, String key) {
+        return Long.parseLong(versions.getOrDefault(key, "0"));
+    }
+
+    private void writePage(List<Shop> shops, Map<String, String> versions, List<CacheSnapshot.Entry> catalogEntries) {
+        // 1 店铺缓存，和queryById使用一样的key和过期时间
+        Map<String, Shop> values = new HashMap<>(shops.size());
+        // 2 按typeId分组的GEO
+        Map<Long, List<Shop>> byType = new HashMap<>();
+        for (Shop shop : shops) {
+            String key = RedisConstants.CACHE_SHOP_KEY + shop.getId();
+            values.put(key, shop);
+            catalogEntries.add(cacheSnapshotManager.entryOf(RedisConstants.CACHE_SHOP_KEY, key, shop, versionOf(versions, key)));
+            if (null != shop.getTypeId() && null != shop.getX() && null != shop.getY()) {
+                byType.computeIfAbsent(shop.getTypeId(), k -> new ArrayList<>()).add(shop);
+            }
+        }
+        cacheClient.setBatchWithLogical(values, versions, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // GEOADD key 经度 纬度 member，一次pipeline
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Long, List<Shop>> entry : byType.entrySet()) {
+                Map<byte[], Point> locations = new HashMap<>(entry.getValue().size());
+                for (Shop shop : entry.getValue()) {
+                    locations.put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+                }
+                byte[] key = (RedisConstants.SHOP_GEO_KEY + entry.getKey()).getBytes(StandardCharsets.UTF_8);
+                connection.geoCommands().geoAdd(key, locations);
+            }
+            return null;
+        });
+    }
+}
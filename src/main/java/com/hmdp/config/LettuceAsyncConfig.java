@@ -0,0 +1,60 @@
+package com.hmdp.config;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadPoolExecutor;
+
+// CacheClient异步查询使用的lettuce连接
+// StringRedisTemplate每次操作都要从连接池借连接、同步等待结果，异步接口直接用lettuce的原生连接，
+// 一个连接是线程安全的，多个请求复用同一个连接（pipeline），不需要连接池
+@Configuration
+public class LettuceAsyncConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient cacheRedisClient(RedisProperties redisProperties) {
+        RedisURI.Builder builder = RedisURI.builder()
+                .withHost(redisProperties.getHost())
+                .withPort(redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase());
+        if (null != redisProperties.getPassword()) {
+            builder.withPassword(redisProperties.getPassword().toCharArray());
+        }
+        Duration timeout = redisProperties.getTimeout();
+        if (null != timeout) {
+            builder.withTimeout(timeout);
+        }
+        return RedisClient.create(builder.build());
+    }
+
+    // key是字符串，value是原始字节，和CacheClient的编码方式一致
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, byte[]> cacheAsyncConnection(RedisClient cacheRedisClient) {
+        return cacheRedisClient.connect(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE));
+    }
+
+    // 异步查询缓存未命中时查询数据库的线程池，不占用lettuce的IO线程
+    // 队列有界，数据库变慢时排不上队的查询直接失败，不会在内存中无限堆积；应用关闭时等待已提交的查询执行完
+    @Bean
+    public ThreadPoolTaskExecutor cacheAsyncDbExecutor(CacheProperties cacheProperties) {
+        CacheProperties.AsyncSpec spec = cacheProperties.getAsync();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(spec.getThreads());
+        executor.setMaxPoolSize(spec.getThreads());
+        executor.setQueueCapacity(spec.getQueueCapacity());
+        executor.setThreadNamePrefix("cache-async-db-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds((int) spec.getDrainSeconds());
+        return executor;
+    }
+}
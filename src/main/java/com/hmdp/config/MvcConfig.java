@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -16,6 +17,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheProperties cacheProperties;
+
     // 默认order都是0，那么按照添加顺序执行
     // order越大，执行等级越低
     @Override
@@ -32,6 +36,10 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**"
                 ).order(1);
 
+        // 修改缓存配置的接口只有管理员可以调用，查询不限制
+        registry.addInterceptor(new AdminInterceptor(cacheProperties.getAdminUserIds()))
+                .addPathPatterns("/cache/**").order(2);
+
         // 为了访问所有的请求时，都刷新token
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
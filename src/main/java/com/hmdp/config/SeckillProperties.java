@@ -0,0 +1,76 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+// 秒杀的配置，对应application.yaml中的hmdp.seckill
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    // stream.orders的消费者
+    private ConsumerSpec consumer = new ConsumerSpec();
+
+    // stream.orders的pendinglist回收、死信和裁剪
+    private StreamSpec stream = new StreamSpec();
+
+    // 本地库存租约
+    private LeaseSpec lease = new LeaseSpec();
+
+    // 新增秒杀券时没有指定分段数，默认的库存分段数，1表示不分段
+    private int defaultStockBuckets = 1;
+
+    // 分段库存卖完的分段记在本地，隔多久再去redis看一次（库存可能被归还、补偿到这个分段），毫秒
+    private long soldOutRecheckMillis = 1000;
+
+    @Data
+    public static class ConsumerSpec {
+        // 分区数，按userId取模，同一个用户的订单在同一个分区，一个分区同一时间只有一个消费者
+        // 修改之前要先消费完所有分区中的消息
+        private int partitions = 8;
+        // 每个实例的消费者数量范围，按积压的消息数在这个范围内增减
+        private int minConsumers = 1;
+        private int maxConsumers = 4;
+        // 平均每个消费者积压超过这么多消息时增加一个消费者，少于一半时减少一个
+        private long lagPerConsumer = 1000;
+        // 检查积压的间隔，毫秒
+        private long scaleIntervalMillis = 5000;
+        // 分区租约的有效期，秒，消费者每三分之一有效期续期一次并重新分配分区
+        private long partitionLeaseSeconds = 30;
+        // 一次XREADGROUP最多读取的消息数，也是一个事务中创建的订单数
+        private int batchSize = 100;
+        // 没有消息时阻塞等待的时间，毫秒
+        private long blockMillis = 2000;
+    }
+
+    @Data
+    public static class StreamSpec {
+        // 检查pendinglist和裁剪stream的间隔，毫秒
+        private long maintainIntervalMillis = 10000;
+        // 投递之后超过这么久没有确认的消息，如果不在分区现在的消费者名下，转给现在的消费者
+        // 要比一批订单的处理时间长得多
+        private long minIdleMillis = 60000;
+        // 投递次数达到这么多还没有确认，转入死信stream
+        private long maxDeliveries = 5;
+        // 每个分区每次最多检查的pending消息数
+        private int pendingScanCount = 100;
+        // 死信stream大约保留的消息数
+        private long deadLetterMaxLen = 10000;
+    }
+
+    @Data
+    public static class LeaseSpec {
+        // 开启后每个实例从redis租一块库存到本地，在本地判断库存，一人一单还是在redis中判断
+        private boolean enabled = false;
+        // 一次租多少库存，越大redis访问越少，实例停掉没来得及归还时损失的库存越多
+        private int blockSize = 50;
+        // 本地剩余的库存少于一块的这个比例时，后台提前续租
+        private double refillRatio = 0.2;
+        // redis中也没有库存之后，隔多久再去redis看一次（其他实例可能归还了库存），毫秒
+        private long exhaustedRecheckMillis = 1000;
+        // 检查秒杀是否结束、归还库存的间隔，毫秒
+        private long checkIntervalMillis = 5000;
+    }
+}
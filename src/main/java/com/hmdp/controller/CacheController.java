@@ -0,0 +1,74 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheStrategy;
+import com.hmdp.utils.CacheStrategyRegistry;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+// 查看缓存的运行情况
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheStrategyRegistry cacheStrategyRegistry;
+
+    /**
+     * 查询每个key前缀的本地缓存、redis命中率
+     * @return key前缀 -> 命中统计
+     */
+    @GetMapping("/stats")
+    public Result queryStats() {
+        return Result.ok(cacheClient.getStats());
+    }
+
+    /**
+     * 查询当前的热点key
+     * @return key -> 估计的访问次数，按访问次数从大到小
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.getHotKeys());
+    }
+
+    /**
+     * 查询配置过或者切换过的缓存策略
+     * @return key前缀 -> 策略
+     */
+    @GetMapping("/strategies")
+    public Result queryStrategies() {
+        return Result.ok(cacheStrategyRegistry.getAll());
+    }
+
+    /**
+     * 切换一个key前缀的缓存策略，保存到redis并通知所有实例，下一次查询生效
+     * 只有管理员可以调用，见AdminInterceptor
+     * @param prefix key前缀，例如 jcwang-common:cache:shop:
+     * @param strategy pass_through、mutex、logical_expire、stale_while_revalidate、local_remote
+     */
+    @PutMapping("/strategies")
+    public Result switchStrategy(@RequestParam("prefix") String prefix, @RequestParam("strategy") String strategy) {
+        CacheStrategy cacheStrategy;
+        try {
+            cacheStrategy = CacheStrategy.of(strategy);
+        } catch (IllegalArgumentException e) {
+            return Result.fail(e.getMessage());
+        }
+        cacheStrategyRegistry.switchStrategy(prefix, cacheStrategy);
+        return Result.ok();
+    }
+}
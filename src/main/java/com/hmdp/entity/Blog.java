@@ -56,6 +56,11 @@ public class Blog implements Serializable {
     // exist=false表示这个属性不属于tb_blog这个数据表
     @TableField(exist = false)
     private Boolean isLike;
+    /**
+     * 商户名称
+     */
+    @TableField(exist = false)
+    private String shopName;
 
     /**
      * 标题
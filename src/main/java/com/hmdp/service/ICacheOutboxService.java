@@ -0,0 +1,23 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.CacheOutbox;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ *  缓存失效的本地消息表
+ * </p>
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务中记录需要删除的缓存key，事务提交之后才会删除
+     * @param keys 缓存key
+     */
+    void enqueue(String... keys);
+
+    /**
+     * 处理到期的消息，批量删除缓存
+     */
+    void relay();
+}
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -16,7 +19,17 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    // 查询店铺，带缓存，不存在返回null
+    Shop queryShopById(Long id);
+
+    Result saveShop(Shop shop);
+
     Result update(Shop shop);
 
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Map<Long, Shop> queryShopMapByIds(Collection<Long> ids);
+
+    // 把布隆过滤器之后新增的店铺补进布隆过滤器
+    void catchUpShopBloomFilter();
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
 /**
  * <p>
  *  服务类
@@ -15,4 +18,8 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
+
+    // 一批秒杀订单在一个事务中写入数据库
+    // stillOwner在提交前调用，返回false时回滚，见SeckillOrderConsumerPool
+    void createVoucherOrders(List<VoucherOrder> voucherOrders, BooleanSupplier stillOwner);
 }
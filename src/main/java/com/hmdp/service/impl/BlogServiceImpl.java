@@ -9,12 +9,15 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
 import com.hmdp.entity.ScrollResult;
+import com.hmdp.entity.Shop;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.IShopService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -26,7 +29,9 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -48,6 +53,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
     
     @Override
     public Result queryHotBlog(Integer current) {
@@ -93,6 +104,22 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(blog);
     }
 
+    // 只需要商户名称，从hash缓存中一次pipeline只读取name字段，不需要整个店铺
+    private void queryBlogShopName(List<Blog> blogs) {
+        List<Long> shopIds = blogs.stream().map(Blog::getShopId).distinct().collect(Collectors.toList());
+        if (shopIds.isEmpty()) {
+            return;
+        }
+        List<Shop> shops = cacheClient.queryBatchHashWithPassThrough(RedisConstants.CACHE_SHOP_HASH_KEY, shopIds, Shop.class,
+                shopService::queryShopMapByIds, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, "id", "name");
+        Map<Long, String> shopNames = shops.stream()
+                .filter(shop -> null != shop.getName())
+                .collect(Collectors.toMap(Shop::getId, Shop::getName));
+        for (Blog blog : blogs) {
+            blog.setShopName(shopNames.get(blog.getShopId()));
+        }
+    }
+
     private void isBlogLiked(Blog blog) {
         // 1 获取登陆用户
         UserDTO user = UserHolder.getUser();
@@ -231,6 +258,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 查询blog是否被点赞
             isBlogLiked(blog);
         }
+        // 查询blog有关的商户名称
+        queryBlogShopName(blogs);
 
         // 5 封装并返回
         ScrollResult scrollResult = new ScrollResult();
@@ -0,0 +1,133 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  缓存失效的本地消息表
+ *  更新数据库时在同一个事务中写入要删除的缓存key，事务提交之后再删除缓存：
+ *  1 提交之前不会删除缓存，并发的读请求不会把旧数据重新写回缓存
+ *  2 redis暂时不可用时消息还在表里，按退避时间重试，不会漏删
+ * </p>
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    // 事务提交后马上处理一次，不用等下一次定时任务
+    private static final ExecutorService CACHE_OUTBOX_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // 定时任务和提交后的触发不同时执行
+    private final ReentrantLock relayLock = new ReentrantLock();
+
+    @Override
+    @Transactional
+    public void enqueue(String... keys) {
+        LocalDateTime now = LocalDateTime.now();
+        List<CacheOutbox> outboxes = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            outboxes.add(new CacheOutbox()
+                    .setCacheKey(key)
+                    .setStatus(CacheOutbox.STATUS_PENDING)
+                    .setRetryCount(0)
+                    .setNextRetryTime(now));
+        }
+        saveBatch(outboxes);
+
+        // 事务提交之后再删除缓存，回滚了就什么都不做
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    CACHE_OUTBOX_EXECUTOR.execute(CacheOutboxServiceImpl.this::relay);
+                }
+            });
+        }
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "#{@cacheProperties.outbox.relayIntervalMillis}")
+    public void relay() {
+        if (!relayLock.tryLock()) {
+            return;
+        }
+        try {
+            CacheProperties.OutboxSpec spec = cacheProperties.getOutbox();
+            while (true) {
+                // 1 按id顺序取出到期的消息
+                List<CacheOutbox> outboxes = query()
+                        .eq("status", CacheOutbox.STATUS_PENDING)
+                        .le("next_retry_time", LocalDateTime.now())
+                        .orderByAsc("id")
+                        .last("limit " + spec.getBatchSize())
+                        .list();
+                if (outboxes.isEmpty()) {
+                    return;
+                }
+                // 2 一次pipeline删除这一批缓存，删除成功再删除消息
+                // 多个实例可能同时处理同一批消息，删除缓存是幂等的，多删一次没有关系
+                Set<String> keys = outboxes.stream().map(CacheOutbox::getCacheKey).collect(Collectors.toCollection(LinkedHashSet::new));
+                try {
+                    cacheClient.deleteBatch(keys);
+                } catch (Exception e) {
+                    log.warn("删除缓存失败，稍后重试，keys: {}", keys, e);
+                    retryLater(outboxes, spec);
+                    return;
+                }
+                removeByIds(outboxes.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+                if (outboxes.size() < spec.getBatchSize()) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("处理缓存失效消息异常", e);
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    // 指数退避：1s、2s、4s...最多maxBackoffSeconds，重试次数用完的标记为失败，需要人工处理
+    private void retryLater(List<CacheOutbox> outboxes, CacheProperties.OutboxSpec spec) {
+        LocalDateTime now = LocalDateTime.now();
+        for (CacheOutbox outbox : outboxes) {
+            int retryCount = outbox.getRetryCount() + 1;
+            outbox.setRetryCount(retryCount);
+            if (retryCount > spec.getMaxRetries()) {
+                outbox.setStatus(CacheOutbox.STATUS_FAILED);
+                log.error("缓存失效消息重试次数用完，id: {}, key: {}", outbox.getId(), outbox.getCacheKey());
+            } else {
+                long backoff = Math.min(1L << Math.min(retryCount - 1, 30), spec.getMaxBackoffSeconds());
+                outbox.setNextRetryTime(now.plusSeconds(backoff));
+            }
+        }
+        updateBatchById(outboxes);
+    }
+}
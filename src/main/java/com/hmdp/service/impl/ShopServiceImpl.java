@@ -5,13 +5,17 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSON;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheStrategy;
+import com.hmdp.utils.HmdpCacheable;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
@@ -21,9 +25,12 @@ import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
@@ -32,6 +39,8 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -51,6 +60,49 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    // 自己的代理对象，调用@HmdpCacheable的方法时使用
+    @Lazy
+    @Resource
+    private IShopService self;
+
+    // 已经放入布隆过滤器的最大店铺id
+    private volatile long bloomMaxId;
+
+    // 启动时用数据库中所有店铺id构建布隆过滤器，拦截不存在的id
+    @PostConstruct
+    private void initShopBloomFilter() {
+        List<Long> ids = listObjs(new QueryWrapper<Shop>().select("id"), id -> Long.valueOf(id.toString()));
+        cacheClient.initBloomFilter(RedisConstants.CACHE_SHOP_KEY, ids);
+        bloomMaxId = ids.stream().mapToLong(Long::longValue).max().orElse(0L);
+    }
+
+    // 新增店铺的pub/sub通知发了就不管，启动期间或者订阅断开时其他实例新增的店铺收不到，会一直被当成不存在的id拦截
+    // 定时从放入过的最大id往后查新增的店铺补进去，误拦截最多持续一个间隔
+    @Override
+    @Scheduled(fixedDelayString = "#{@cacheProperties.bloom.catchUpIntervalMillis}",
+            initialDelayString = "#{@cacheProperties.bloom.catchUpIntervalMillis}")
+    public void catchUpShopBloomFilter() {
+        List<Long> ids = listObjs(new QueryWrapper<Shop>().select("id").gt("id", bloomMaxId),
+                id -> Long.valueOf(id.toString()));
+        long maxId = bloomMaxId;
+        for (Long id : ids) {
+            cacheClient.addToBloomFilterLocal(RedisConstants.CACHE_SHOP_KEY + id);
+            maxId = Math.max(maxId, id);
+        }
+        bloomMaxId = maxId;
+    }
+
+    // 默认是逻辑过期 + 概率提前重建
+    @Override
+    @HmdpCacheable(prefix = RedisConstants.CACHE_SHOP_KEY, ttl = RedisConstants.CACHE_SHOP_TTL, unit = TimeUnit.MINUTES,
+            beta = RedisConstants.CACHE_SHOP_XFETCH_BETA, strategy = CacheStrategy.LOGICAL_EXPIRE)
+    public Shop queryShopById(Long id) {
+        return getById(id);
+    }
+
     @Override
     public Result queryById(Long id) {
 //        // 向缓存写入null解决缓存穿透
@@ -64,7 +116,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 注意逻辑过期，由于是热点key，缓存中一定要提前写入热点key，此处用的单元测试
 //        // 逻辑过期解决缓存击穿
 //        Shop shop = queryWithLogicalExpireById(id);
-        Shop shop = cacheClient.queryWithLogicalExpireById(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+//        Shop shop = cacheClient.queryWithLogicalExpireById(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+//        // 软过期后返回旧数据并后台刷新，硬过期后同步查询，不需要预热
+//        Shop shop = cacheClient.queryWithStaleWhileRevalidate(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+//                RedisConstants.CACHE_SHOP_SOFT_TTL, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+//        // 逻辑过期 + 概率提前重建，热点key的重建分散在过期前，不会在过期那一刻集中抢锁
+//        Shop shop = cacheClient.queryWithLogicalExpireById(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+//                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, RedisConstants.CACHE_SHOP_XFETCH_BETA);
+        // 通过@HmdpCacheable查询，缓存策略在application.yaml中配置，运行时可以切换
+        // 要通过代理对象调用，注解才会生效
+        Shop shop = self.queryShopById(id);
 
         if (null == shop) {
             return Result.ok("店铺不存在！");
@@ -75,63 +136,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
     // 为解决缓存击穿，使用互斥锁
+    // 同一个key本实例只有一个线程去抢锁、查数据库，其他线程共享它的结果，不再每个线程睡眠50ms递归重试
     public Shop queryWithMutexById(Long id) {
-        // 1 从redis查询商户缓存
-        // 是个对象，最好用hash，但是此处为了演示，使用string
-        String shopJson = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id);
-
-        // 2 查询是否存在，是否命中
-        if (StrUtil.isNotBlank(shopJson)) { // 空字符串，null，换行等都是false
-            // 3 存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-//            return Result.ok(shop);
-            return null;
-        }
-
-        // 解决缓存穿透，将空值（""而不是null）写入，所以判断命中的是否是空值，即空字符串
-        if (null != shopJson) { // 此处逻辑是前面isNotBlank判断
-            // 返回错误信息
-//            return Result.fail("店铺不存在!");
-            return null;
-        }
-
-        // 4 实现缓存重建
-        // 4 1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4 2 判断是否获取成功
-            // 4 3 失败，则休眠并重试
-            if (!isLock) {
-                Thread.sleep(50);
-                return queryWithMutexById(id); // 递归，睡眠后，再去查询
-            }
-            // 4 4 成功，根据ID查询数据库
-            shop = getById(id);
-            // 因为缓存击穿，是高并发和重建慢，所以此处模拟重建的延时
-            Thread.sleep(200);
-
-            // 5 数据库也不存在，返回错误
-            if (null == shop) {
-                // 为了解决穿透缓存，需要将空值写入
-                stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-    //            return Result.fail("店铺不存在!");
-                return null;
-            }
-            // 6 存在，写入redis
-            stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7 释放互斥锁
-            unLock(lockKey);
-        }
-
-
-        // 返回店铺信息
-//        return Result.ok(shop);
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 //    // 为解决缓存击穿，使用逻辑过期
@@ -237,13 +244,18 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 模拟重建延迟
 //        Thread.sleep(200);
 
-        // 2 封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
+        // 2 封装逻辑过期时间，写入Redis，按配置的编码方式编码
+        cacheClient.setWithLogical(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
+    }
 
-        // 写入Redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 新店铺放入布隆过滤器，否则会被当成不存在的id拦截
+        cacheClient.addToBloomFilter(RedisConstants.CACHE_SHOP_KEY, shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     // 由于需要保证redis和mysql的一致性
@@ -256,12 +268,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺不能为空");
         }
 
-        System.out.println(shop);
-
-        // 1 先更新数据库
+        // 1 先更新数据库，更新时间交给数据库的ON UPDATE，店铺快照按更新时间判断店铺有没有变
+        shop.setUpdateTime(null);
         updateById(shop);
-        // 2 再删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 2 在同一个事务中记录要删除的缓存，事务提交之后再删除，失败了会重试
+        cacheOutboxService.enqueue(RedisConstants.CACHE_SHOP_KEY + id, RedisConstants.CACHE_SHOP_HASH_KEY + id);
 
         return Result.ok();
     }
@@ -315,9 +326,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             distanceMap.put(shopIdStr, distance);
         });
 
-        // 5 根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        // 5 根据id查询shop，走批量缓存，一页只需要常数次redis交互，顺序和ids一致
+//        String idStr = StrUtil.join(",", ids);
+//        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+//        List<Shop> cached = cacheClient.queryBatchWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+//                this::queryShopMapByIds, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 列表只需要卡片上的字段，从hash缓存中用HMGET只读取这些字段，每次都是新对象，可以直接设置距离
+        List<Shop> shops = cacheClient.queryBatchHashWithPassThrough(RedisConstants.CACHE_SHOP_HASH_KEY, ids, Shop.class,
+                this::queryShopMapByIds, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES, SystemConstants.SHOP_CARD_FIELDS);
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
@@ -326,6 +342,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    // 批量缓存的数据库回调，一次IN查询
+    @Override
+    public Map<Long, Shop> queryShopMapByIds(Collection<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+    }
+
     // 通过不存在才写入，不存在写入成功为1，存在不成功为0
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
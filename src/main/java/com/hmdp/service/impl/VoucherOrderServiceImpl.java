@@ -1,6 +1,7 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Voucher;
@@ -10,10 +11,11 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillOrderConsumerPool;
+import com.hmdp.utils.SeckillStockBuckets;
+import com.hmdp.utils.SeckillStockLeases;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.context.annotation.Bean;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.connection.stream.*;
@@ -26,10 +28,14 @@ import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
 
 /**
  * <p>
@@ -51,16 +57,14 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillProperties seckillProperties;
 
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor(); // 线程池，处理订单
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
+
+    @Resource
+    private SeckillStockLeases seckillStockLeases;
 
-    // 处理订单的阻塞队列在程序运行就可以有，所以这个注解表示这个方法在类初始化之后就运行，然后他调用了线程运行异步队列
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
 //    // 使用java自己的阻塞队列BlockingQueue的代码
 //    private class VoucherOrderHandler implements Runnable {
 //        @Override
@@ -79,136 +83,176 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //    }
 
     // 获取redis的消息队列STREAMS的代码
-    private class VoucherOrderHandler implements Runnable {
-        @Override
-        public void run() {
-            String queueName = "stream.orders";
-            while(true) {
-
-                try {
-                    // 1 获取队列中的订单  XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-
-                    // 2 判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
-                    }
-
-                    // 3 创建订单
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-
-                    // 4 确认消息XACK
-                    createVoucherOrder(voucherOrder);
-                    // 2 创建订单
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常！");
-                    handlePenddingList();
-//                    throw new RuntimeException(e);
-                }
-            }
+    // stream按用户id分区，每个分区由一个消费者处理，消费者的数量按积压的消息数增减，见SeckillOrderConsumerPool
+
+    // 一批订单在一个事务中创建
+    // lua中已经判断过库存和一人一单了，这里按批查询一次去重，每个优惠券一条update扣减库存，一次批量插入
+    // 一人一单不再加Redisson的用户锁：同一个用户的消息都在同一个分区（stream.orders:{userId % 分区数}），
+    // 一个分区同一时间只有持有分区租约的一个消费者在处理，见SeckillOrderConsumerPool，同一个用户的订单不会并发创建
+    // 租约过期被其他消费者接管时，旧的消费者手里的这一批可能和新消费者并发处理，
+    // 所以提交前调用stillOwner确认（续期）这一批分区的租约还是自己的，不是就抛出异常回滚，消息留给新的消费者
+    // tb_voucher_order上没有(user_id, voucher_id)的唯一索引，不要绕过分区直接调用这个方法
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders, BooleanSupplier stillOwner) {
+        // 1 一人一单，一次查询这批用户和优惠券已有的订单，消息重复投递时也会在这里被跳过
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        }
+        Set<String> existing = new HashSet<>();
+        for (VoucherOrder order : query().select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list()) {
+            existing.add(orderKey(order));
+        }
+        List<VoucherOrder> toSave = dedupe(voucherOrders, existing);
+        if (toSave.isEmpty()) {
+            return;
         }
 
-        // 处理过程中有异常，需要从pendinglist中得到没有ack的消息
-        private void handlePenddingList() {
-            String queueName = "stream.orders";
-            while(true) {
-                try {
-                    // 1 获取pendinglist中的订单，从0开始  XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-
-                    // 2 判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明pendinglist中没有异常消息，结束循环
-                        break;
-                    }
-
-                    // 3 创建订单
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-
-                    // 4 确认消息XACK
-                    createVoucherOrder(voucherOrder);
-                    // 2 创建订单
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pendinglist订单异常！");
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
+        // 2 扣减库存，每个优惠券一条update   set stock = stock - n where voucher_id = ? and stock >= n
+        Map<Long, Integer> allowed = new HashMap<>();
+        for (Map.Entry<Long, Integer> entry : countByVoucher(toSave).entrySet()) {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + entry.getValue())
+                    .eq("voucher_id", entry.getKey()).ge("stock", entry.getValue())
+                    .update();
+            if (success) {
+                allowed.put(entry.getKey(), entry.getValue());
+                continue;
             }
+            // 2 1 库存不够整批扣减（redis和数据库的库存不一致），锁住这一行，剩多少扣多少，只创建扣到库存的订单
+            allowed.put(entry.getKey(), decrementAvailable(entry.getKey(), entry.getValue()));
         }
-    }
 
-    private void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 注意，此处的很多判断，其实肯定是无效的，因为前面lua判断过了，这里只不过是再稍微判断一下而已
-        long voucherId  = voucherOrder.getVoucherId();
-        Long userId = voucherOrder.getUserId();
-        // 这个一人一单，是插入数据的，不能用乐观锁，所以此处用悲观锁，防止多个线程是一个用户的时候同时访问而出错
-        // 5 一人一单
-        // 5 1 查询订单
-
-        // 创建锁对象
-        RLock redisLock = redissonClient.getLock("order:" + userId);
-        // 尝试获取锁
-//        boolean isLock = redisLock.tryLock(1, 10, TimeUnit.SECONDS);
-        boolean isLock = redisLock.tryLock(); // 里面不写参数的话，失败了直接结束，不会像上面1s内重试。一次，不重试
-        // 判断
-        if (!isLock) { // 失败，可以重试，也可以直接返回失败
-//            return Result.fail("不允许重复下单！");
-            log.error("不允许重复下单！");
-            return;
+        // 3 批量保存订单，配合jdbc的rewriteBatchedStatements合并成一条insert
+        toSave = limitByVoucher(toSave, allowed);
+        if (!toSave.isEmpty()) {
+            saveBatch(toSave, toSave.size());
         }
 
-        try {
-            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-            // 5 2 判断是否存在（通过用户id和优惠券id）
-            if (count > 0) {
-//                return Result.fail("用户已经购买过一次!");
-                log.error("用户已经购买过一次!");
-                return;
-            }
+        // 4 提交前确认分区租约还是自己的
+        if (!stillOwner.getAsBoolean()) {
+            throw new IllegalStateException("分区租约已失效，回滚这一批订单");
+        }
+    }
 
-            // 6 扣减库存，数据库里面的
-//        boolean success = seckillVoucherService.update()
-//                .setSql("stock = stock - 1")    // set stock = stock - 1
-//                .eq("voucher_id", voucherId).eq("stock", voucher.getStock()) // 乐观锁，CAS， voucher.getStock()是旧数值，数据库拿到的是新数值，where id = ? and stock = ?
-//                .update();
-            boolean success = seckillVoucherService.update()
-                    .setSql("stock = stock - 1")    // set stock = stock - 1
-                    .eq("voucher_id", voucherId).gt("stock", 0) // 此处优化，没必要每一次都相等才给数值，此处直接>0就好了
+    // 扣减剩余的库存，最多扣count个，返回实际扣减的数量
+    private int decrementAvailable(Long voucherId, int count) {
+        SeckillVoucher voucher = seckillVoucherService.query().select("stock")
+                .eq("voucher_id", voucherId).last("for update").one();
+        int available = null == voucher || null == voucher.getStock() ? 0 : Math.max(0, Math.min(voucher.getStock(), count));
+        if (available > 0) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock - " + available)
+                    .eq("voucher_id", voucherId).ge("stock", available)
                     .update();
+        }
+        log.error("库存不足, voucherId: " + voucherId + ", count: " + count + ", 实际扣减: " + available);
+        return available;
+    }
 
-            if (!success) {
-//                return Result.fail("库存不足");
-                log.error("库存不足");
+    private static String orderKey(VoucherOrder voucherOrder) {
+        return voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId();
+    }
+
+    // 去掉数据库中已经有的和这一批中重复的订单，existing会加入这一批的订单
+    List<VoucherOrder> dedupe(List<VoucherOrder> voucherOrders, Set<String> existing) {
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            // add返回false说明数据库中已经有了，或者这一批中重复了
+            if (!existing.add(orderKey(voucherOrder))) {
+                log.error("用户已经购买过一次! userId: " + voucherOrder.getUserId() + ", voucherId: " + voucherOrder.getVoucherId());
+                continue;
             }
+            toSave.add(voucherOrder);
+        }
+        return toSave;
+    }
 
-            // 7 保存订单到数据库
-            save(voucherOrder);  // 存储到数据库
+    // 优惠券id -> 这一批中的订单数
+    Map<Long, Integer> countByVoucher(List<VoucherOrder> voucherOrders) {
+        Map<Long, Integer> counts = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            counts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+        }
+        return counts;
+    }
 
-            // 8 返回订单id
-//            return Result.ok(order);
-        } finally {
-            redisLock.unlock();
+    // 每个优惠券按消息顺序只保留扣到库存的前n个订单，扣不到的记录日志，不创建订单
+    List<VoucherOrder> limitByVoucher(List<VoucherOrder> voucherOrders, Map<Long, Integer> allowed) {
+        Map<Long, Integer> remaining = new HashMap<>(allowed);
+        List<VoucherOrder> result = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            Integer left = remaining.getOrDefault(voucherOrder.getVoucherId(), 0);
+            if (left <= 0) {
+                log.error("库存不足，订单未创建! orderId: " + voucherOrder.getId() + ", userId: " + voucherOrder.getUserId()
+                        + ", voucherId: " + voucherOrder.getVoucherId());
+                continue;
+            }
+            remaining.put(voucherOrder.getVoucherId(), left - 1);
+            result.add(voucherOrder);
         }
+        return result;
     }
 
+//    // 逐条处理消息时使用的写法，每个订单一把用户锁、一次查询、一次update、一次insert
+//    private void createVoucherOrder(VoucherOrder voucherOrder) {
+//        // 注意，此处的很多判断，其实肯定是无效的，因为前面lua判断过了，这里只不过是再稍微判断一下而已
+//        long voucherId  = voucherOrder.getVoucherId();
+//        Long userId = voucherOrder.getUserId();
+//        // 这个一人一单，是插入数据的，不能用乐观锁，所以此处用悲观锁，防止多个线程是一个用户的时候同时访问而出错
+//        // 5 一人一单
+//        // 5 1 查询订单
+//
+//        // 创建锁对象
+//        RLock redisLock = redissonClient.getLock("order:" + userId);
+//        // 尝试获取锁
+////        boolean isLock = redisLock.tryLock(1, 10, TimeUnit.SECONDS);
+//        boolean isLock = redisLock.tryLock(); // 里面不写参数的话，失败了直接结束，不会像上面1s内重试。一次，不重试
+//        // 判断
+//        if (!isLock) { // 失败，可以重试，也可以直接返回失败
+////            return Result.fail("不允许重复下单！");
+//            log.error("不允许重复下单！");
+//            return;
+//        }
+//
+//        try {
+//            int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+//            // 5 2 判断是否存在（通过用户id和优惠券id）
+//            if (count > 0) {
+////                return Result.fail("用户已经购买过一次!");
+//                log.error("用户已经购买过一次!");
+//                return;
+//            }
+//
+//            // 6 扣减库存，数据库里面的
+////        boolean success = seckillVoucherService.update()
+////                .setSql("stock = stock - 1")    // set stock = stock - 1
+////                .eq("voucher_id", voucherId).eq("stock", voucher.getStock()) // 乐观锁，CAS， voucher.getStock()是旧数值，数据库拿到的是新数值，where id = ? and stock = ?
+////                .update();
+//            boolean success = seckillVoucherService.update()
+//                    .setSql("stock = stock - 1")    // set stock = stock - 1
+//                    .eq("voucher_id", voucherId).gt("stock", 0) // 此处优化，没必要每一次都相等才给数值，此处直接>0就好了
+//                    .update();
+//
+//            if (!success) {
+////                return Result.fail("库存不足");
+//                log.error("库存不足");
+//            }
+//
+//            // 7 保存订单到数据库
+//            save(voucherOrder);  // 存储到数据库
+//
+//            // 8 返回订单id
+////            return Result.ok(order);
+//        } finally {
+//            redisLock.unlock();
+//        }
+//    }
+
     // 静态加一次，而不是说每次判断释放锁的时候，每次加载一次
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
@@ -223,13 +267,19 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         Long userId = UserHolder.getUser().getId();
         Long orderId = redisIdWorker.nextId("order");
 
-        // 1 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), orderId.toString()
-        );
-        int r = result.intValue();
+        // 1 执行lua脚本，分段库存的优惠券先扣用户所属分段的库存，见SeckillStockBuckets
+//        Long result = stringRedisTemplate.execute(
+//                SECKILL_SCRIPT,
+//                Collections.emptyList(),
+//                voucherId.toString(), userId.toString(), orderId.toString(),
+//                SeckillOrderConsumerPool.streamOf(userId, seckillProperties.getConsumer().getPartitions())
+//        );
+//        int r = result.intValue();
+        // 开启本地库存租约时先在本地扣库存，见SeckillStockLeases
+        String stream = SeckillOrderConsumerPool.streamOf(userId, seckillProperties.getConsumer().getPartitions());
+        int r = seckillStockLeases.isEnabled()
+                ? seckillStockLeases.acquire(voucherId, userId, orderId, stream)
+                : seckillStockBuckets.acquire(voucherId, userId, orderId, stream);
         // 2 判断是否为0
         if (r != 0) {
             // 2 1 不为0，代表没有购买资格
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+// 管理接口的校验，在LoginInterceptor之后执行，只有配置的管理员（hmdp.cache.admin-user-ids）可以修改
+// GET只是查询，登录即可
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminUserIds;
+
+    public AdminInterceptor(Collection<Long> adminUserIds) {
+        this.adminUserIds = new HashSet<>(adminUserIds);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if ("GET".equalsIgnoreCase(request.getMethod())) {
+            return true;
+        }
+        UserDTO user = UserHolder.getUser();
+        if (null == user || !adminUserIds.contains(user.getId())) {
+            // 不是管理员，拒绝
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,292 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 紧凑的二进制格式，不写字段名，按字段顺序写值，解码直接生成目标对象
+// 格式：魔数(1) 类型(1) [逻辑过期时间(8) 重建耗时(8)] 字段签名(4) 每个字段：是否为空(1) 值
+// 字段签名是字段名和类型算出来的hash，类的字段变了签名就对不上，解码返回null，当作缓存未命中
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final String NAME = "binary";
+
+    // JSON一定以 { [ " 或数字开头，不会和这个字节冲突
+    public static final byte MAGIC = (byte) 0xB1;
+
+    private static final byte KIND_PLAIN = 0;
+    private static final byte KIND_LOGICAL = 1;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC);
+            out.writeByte(KIND_PLAIN);
+            writeBean(out, value);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readByte() != MAGIC || in.readByte() != KIND_PLAIN) {
+                return null;
+            }
+            return readBean(in, type);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // 直接从ByteBuffer解码，读取本地快照的内存映射文件时不需要先复制成byte[]
+    public <T> T decode(ByteBuffer buffer, Class<T> type) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+            if (in.readByte() != MAGIC || in.readByte() != KIND_PLAIN) {
+                return null;
+            }
+            return readBean(in, type);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData<?> redisData) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(MAGIC);
+            out.writeByte(KIND_LOGICAL);
+            out.writeLong(redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            out.writeLong(null == redisData.getBuildMillis() ? -1 : redisData.getBuildMillis());
+            out.writeBoolean(null != redisData.getData());
+            if (null != redisData.getData()) {
+                writeBean(out, redisData.getData());
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readByte() != MAGIC || in.readByte() != KIND_LOGICAL) {
+                return null;
+            }
+            RedisData<T> redisData = new RedisData<>();
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault()));
+            long buildMillis = in.readLong();
+            redisData.setBuildMillis(buildMillis < 0 ? null : buildMillis);
+            if (in.readBoolean()) {
+                T data = readBean(in, type);
+                if (null == data) {
+                    return null;
+                }
+                redisData.setData(data);
+            }
+            return redisData;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void writeBean(DataOutputStream out, Object value) throws IOException {
+        Schema schema = schemaOf(value.getClass());
+        out.writeInt(schema.signature);
+        try {
+            for (Field field : schema.fields) {
+                writeValue(out, field.getType(), field.get(value));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private <T> T readBean(DataInputStream in, Class<T> type) throws IOException {
+        Schema schema = schemaOf(type);
+        if (in.readInt() != schema.signature) {
+            // 类的字段变了，旧数据不能用
+            return null;
+        }
+        try {
+            T bean = type.getDeclaredConstructor().newInstance();
+            for (Field field : schema.fields) {
+                Object fieldValue = readValue(in, field.getType(), field.getGenericType());
+                if (null != fieldValue) {
+                    field.set(bean, fieldValue);
+                }
+            }
+            return bean;
+        } catch (InvocationTargetException e) {
+            // 构造方法自己抛出的异常，不要包成InvocationTargetException
+            throw new IllegalStateException("创建" + type.getName() + "失败", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("创建" + type.getName() + "失败，需要无参构造方法", e);
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        out.writeBoolean(null != value);
+        if (null == value) {
+            return;
+        }
+        if (type == String.class) {
+            writeString(out, (String) value);
+        } else if (type == Long.class || type == long.class) {
+            out.writeLong((Long) value);
+        } else if (type == Integer.class || type == int.class) {
+            out.writeInt((Integer) value);
+        } else if (type == Double.class || type == double.class) {
+            out.writeDouble((Double) value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == LocalDateTime.class) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(time.getNano());
+        } else if (type == LocalDate.class) {
+            out.writeLong(((LocalDate) value).toEpochDay());
+        } else if (type == BigDecimal.class) {
+            writeString(out, value.toString());
+        } else {
+            // 其他类型不常见，退化成JSON
+            writeString(out, JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private Object readValue(DataInputStream in, Class<?> type, Type genericType) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        if (type == String.class) {
+            return readString(in);
+        } else if (type == Long.class || type == long.class) {
+            return in.readLong();
+        } else if (type == Integer.class || type == int.class) {
+            return in.readInt();
+        } else if (type == Double.class || type == double.class) {
+            return in.readDouble();
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.readBoolean();
+        } else if (type == LocalDateTime.class) {
+            return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        } else if (type == LocalDate.class) {
+            return LocalDate.ofEpochDay(in.readLong());
+        } else if (type == BigDecimal.class) {
+            return new BigDecimal(readString(in));
+        } else {
+            // 按声明的泛型类型解析，List、Map这类字段也能还原
+            return JSONUtil.toBean(readString(in), genericType, false);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, Schema::new);
+    }
+
+    // 一个类需要序列化的字段，按字段名排序，保证每次顺序一样
+    private static class Schema {
+        private final Field[] fields;
+        private final int signature;
+
+        private Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            StringBuilder sb = new StringBuilder(type.getName());
+            for (Field field : fields) {
+                sb.append(';').append(field.getName()).append(':').append(field.getType().getName());
+            }
+            this.signature = Arrays.hashCode(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
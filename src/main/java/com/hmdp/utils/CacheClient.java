@@ -1,21 +1,56 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.date.DatePattern;
+import cn.hutool.core.date.LocalDateTimeUtil;
 import cn.hutool.core.lang.func.Func;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.core.util.ReflectUtil;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 @Slf4j
@@ -23,119 +58,1522 @@ import java.util.function.Function;
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 本地一级缓存，只对配置过的key前缀生效
+    private final LocalCache localCache;
+
+    // 每个key前缀的命中统计
+    private final Map<String, CacheStats> stats = new ConcurrentHashMap<>();
+
+    // key前缀 -> 布隆过滤器，没有注册的前缀不做拦截
+    private final Map<String, BloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    // 布隆过滤器误判的id，数据库里也没有，记在本地，代替向redis写空值
+    private final LocalCache negativeCache;
+
+    private final CacheProperties cacheProperties;
+
+    // 本实例内缓存重建的请求合并，同一个key只有一个线程去查数据库
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    // 编码方式，按key前缀配置，默认JSON
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+    private final CacheCodec binaryCodec = new BinaryCacheCodec();
+    private final Map<String, CacheCodec> codecs = new ConcurrentHashMap<>();
+    // 按key前缀的配置，过期时间抖动等
+    private final Map<String, CacheProperties.PrefixSpec> prefixSpecs = new ConcurrentHashMap<>();
+    private static final CacheProperties.PrefixSpec DEFAULT_PREFIX_SPEC = new CacheProperties.PrefixSpec();
+    private final CacheMetrics cacheMetrics;
+
+    // 逻辑过期的异步重建，有界、按key去重
+    private final CacheRebuildScheduler rebuildScheduler;
+
+    // 热点key探测，没有配置本地缓存的前缀，热点key也放入本地缓存（hotCache），冷却后移出
+    private final HotKeyDetector hotKeyDetector;
+    private final LocalCache hotCache;
+
+    // 异步查询使用的lettuce原生连接，见LettuceAsyncConfig
+    private final RedisAsyncCommands<String, byte[]> asyncCommands;
+
+    // 异步查询缓存未命中时，在这个线程池中查询数据库，不占用lettuce的IO线程，见LettuceAsyncConfig
+    private final ThreadPoolTaskExecutor asyncDbExecutor;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, CacheProperties cacheProperties, CacheMetrics cacheMetrics,
+                       CacheRebuildScheduler rebuildScheduler, HotKeyDetector hotKeyDetector,
+                       StatefulRedisConnection<String, byte[]> cacheAsyncConnection,
+                       @Qualifier("cacheAsyncDbExecutor") ThreadPoolTaskExecutor asyncDbExecutor) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.asyncCommands = cacheAsyncConnection.async();
+        this.asyncDbExecutor = asyncDbExecutor;
+        this.cacheProperties = cacheProperties;
+        this.cacheMetrics = cacheMetrics;
+        this.rebuildScheduler = rebuildScheduler;
+        this.hotKeyDetector = hotKeyDetector;
+        this.localCache = new LocalCache(cacheProperties.getLocal());
+        this.negativeCache = new LocalCache(Collections.emptyList());
+        this.hotCache = new LocalCache(Collections.emptyList());
+        hotKeyDetector.setDemoteListener(hotCache::evict);
+        for (CacheProperties.PrefixSpec spec : cacheProperties.getPrefixes()) {
+            codecs.put(spec.getPrefix(), BinaryCacheCodec.NAME.equals(spec.getCodec()) ? binaryCodec : jsonCodec);
+            prefixSpecs.put(spec.getPrefix(), spec);
+        }
     }
 
+    // set、setWithLogical直接覆盖，不比较版本号，调用方要保证写入的是刚从数据库查出来的数据（例如saveShop2Redis）
+    // CacheClient内部的查询、重建、批量写入（setBatchWithLogical）都按查询数据库之前读到的版本号写入，见casSet
+    // updateHashField、incrementHashField只修改已经存在的hash，缓存被删除后不会再写出来
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, encode(key, value), time, unit);
     }
 
     // 解决缓存击穿
     public void setWithLogical(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogical(key, value, time, unit, null);
+    }
+
+    // buildMillis为这次重建的耗时，用于概率提前重建
+    public void setWithLogical(String key, Object value, Long time, TimeUnit unit, Long buildMillis) {
+        // 写入redis
+        setRaw(key, encodeLogical(key, value, time, unit, buildMillis, false), null, null);
+    }
+
+    // 一次pipeline写入多个逻辑过期的key，预热时使用
+    // 逻辑过期时间会在配置的窗口内打散，一起写入的key不会在同一时刻一起过期
+    // versions是查询数据库之前用readVersions读到的版本号，版本号变了的key不写入，返回没有写入的key
+    // 已经存在的key不覆盖，滚动发布时其他实例已经在处理请求，redis中的数据可能是预热开始之后才重建的
+    public Set<String> setBatchWithLogical(Map<String, ?> values, Map<String, String> versions, Long time, TimeUnit unit) {
+        Map<String, byte[]> encoded = new HashMap<>(values.size());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            encoded.put(entry.getKey(), encodeLogical(entry.getKey(), entry.getValue(), time, unit, null, true));
+        }
+        return casPipelined(encoded, versions, null, null, true);
+    }
+
+    // batch为true表示是批量写入的，逻辑过期时间需要打散
+    private byte[] encodeLogical(String key, Object value, Long time, TimeUnit unit, Long buildMillis, boolean batch) {
         // 设置逻辑过期
-        RedisData redisData = new RedisData();
+        RedisData<Object> redisData = new RedisData<>();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        long expireAt = System.currentTimeMillis() + ttlMillis(key, time, unit, batch, CacheMetrics.TTL_LOGICAL);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        redisData.setBuildMillis(buildMillis);
+        // 头部再写一份过期时间和重建耗时，lua脚本判断过期用
+        return LogicalExpireHeader.wrap(compress(key, codecForKey(key).encodeLogical(redisData)),
+                expireAt, null == buildMillis ? 0 : buildMillis);
+    }
 
-        // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    // 防止缓存雪崩，过期时间加上随机抖动：ttl * (1 + [0, ttlJitter))
+    // spread为true时再加上[0, spreadSeconds)，批量写入的key过期时间分散在一个窗口内
+    private long ttlMillis(String key, long time, TimeUnit unit, boolean spread, String kind) {
+        CacheProperties.PrefixSpec spec = specForKey(key);
+        long millis = unit.toMillis(time);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (spec.getTtlJitter() > 0) {
+            millis += (long) (millis * spec.getTtlJitter() * random.nextDouble());
+        }
+        if (spread && spec.getSpreadSeconds() > 0) {
+            millis += random.nextLong(TimeUnit.SECONDS.toMillis(spec.getSpreadSeconds()));
+        }
+        cacheMetrics.ttl(null == spec.getPrefix() ? "default" : spec.getPrefix(), kind, millis);
+        return millis;
+    }
+
+    private CacheProperties.PrefixSpec specForKey(String key) {
+        for (Map.Entry<String, CacheProperties.PrefixSpec> entry : prefixSpecs.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return DEFAULT_PREFIX_SPEC;
+    }
+
+    // 写入时按key前缀选择编码方式
+    private CacheCodec codecForKey(String key) {
+        for (Map.Entry<String, CacheCodec> entry : codecs.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return jsonCodec;
+    }
+
+    // 读取时按字节头判断格式
+    private CacheCodec codecOf(byte[] bytes) {
+        return BinaryCacheCodec.isBinary(bytes) ? binaryCodec : jsonCodec;
+    }
+
+    private byte[] encode(String key, Object value) {
+        return compress(key, codecForKey(key).encode(value));
+    }
+
+    // 超过前缀配置的大小才压缩，压缩后没有变小的存原始数据
+    private byte[] compress(String key, byte[] bytes) {
+        CacheProperties.PrefixSpec spec = specForKey(key);
+        if (spec.getCompressThreshold() <= 0 || bytes.length < spec.getCompressThreshold()) {
+            return bytes;
+        }
+        byte[] compressed = CacheCompressor.compress(bytes);
+        cacheMetrics.compression(spec.getPrefix(), bytes.length, null == compressed ? bytes.length : compressed.length);
+        return null == compressed ? bytes : compressed;
+    }
+
+    // 压缩过的先解压，解压失败返回null，当作未命中
+    private byte[] decompress(byte[] bytes) {
+        if (!CacheCompressor.isCompressed(bytes)) {
+            return bytes;
+        }
+        try {
+            return CacheCompressor.decompress(bytes);
+        } catch (IllegalStateException e) {
+            log.warn("缓存数据解压失败", e);
+            return null;
+        }
+    }
+
+    // 带逻辑过期头部的是逻辑过期的数据，切换了缓存策略之后会读到，当作未命中
+    private <R> R decode(byte[] bytes, Class<R> type) {
+        if (LogicalExpireHeader.hasHeader(bytes)) {
+            return null;
+        }
+        bytes = decompress(bytes);
+        return null == bytes ? null : codecOf(bytes).decode(bytes, type);
+    }
+
+    // 字段签名对不上等情况返回null，当作未命中
+    private <R> RedisData<R> decodeLogical(byte[] bytes, Class<R> type) {
+        bytes = decompress(LogicalExpireHeader.unwrap(bytes));
+        if (null == bytes) {
+            return null;
+        }
+        RedisData<R> redisData = codecOf(bytes).decodeLogical(bytes, type);
+        return null == redisData || null == redisData.getData() || null == redisData.getExpireTime() ? null : redisData;
+    }
+
+    // 空值（空字符串）也是命中，说明数据库中不存在
+    private static boolean isNotBlank(byte[] bytes) {
+        return null != bytes && bytes.length > 0;
+    }
+
+    private byte[] raw(String key) {
+        return stringRedisTemplate.getStringSerializer().serialize(key);
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(raw(key)));
+    }
+
+    // time为null表示不设置过期时间
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        Expiration expiration = expirationOf(key, time, unit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.stringCommands().set(raw(key), value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    // 每个key的过期时间单独加抖动
+    private Expiration expirationOf(String key, Long time, TimeUnit unit) {
+        if (null == time) {
+            return Expiration.persistent();
+        }
+        return Expiration.milliseconds(ttlMillis(key, time, unit, false, CacheMetrics.TTL_PHYSICAL));
+    }
+
+
+    // 版本号没有变化才写入，见cache_cas.lua
+    private static final DefaultRedisScript<Long> CACHE_CAS_SCRIPT;
+    static {
+        CACHE_CAS_SCRIPT = new DefaultRedisScript<>();
+        CACHE_CAS_SCRIPT.setLocation(new ClassPathResource("cache_cas.lua"));
+        CACHE_CAS_SCRIPT.setResultType(Long.class);
+    }
+
+    // 脚本参数中缓存值是byte[]，原样传入，版本号和过期时间按字符串传入
+    private static final RedisSerializer<Object> SCRIPT_ARGS_SERIALIZER = new RedisSerializer<Object>() {
+        @Override
+        public byte[] serialize(Object value) {
+            return value instanceof byte[] ? (byte[]) value : String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            return bytes;
+        }
+    };
+    private static final RedisSerializer<Long> CAS_RESULT_SERIALIZER = new GenericToStringSerializer<>(Long.class);
+
+    // 逻辑过期的读取和重建租约，见cache_logical_get.lua；租约用unlock.lua释放，标识一致才删除
+    private static final DefaultRedisScript<List<Object>> LOGICAL_GET_SCRIPT = listScript("cache_logical_get.lua");
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+    // 脚本返回的列表中每个值都用它反序列化，值是byte[]，原样返回
+    private static final RedisSerializer<List<Object>> SCRIPT_RESULT_SERIALIZER = listElementSerializer(SCRIPT_ARGS_SERIALIZER);
+
+    // 返回多个值的脚本，setResultType只能传List.class，未检查的转换只在这里
+    @SuppressWarnings("unchecked")
+    private static DefaultRedisScript<List<Object>> listScript(String location) {
+        DefaultRedisScript<List<Object>> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType((Class<List<Object>>) (Class<?>) List.class);
+        return script;
+    }
+
+    // 结果是列表时，spring用resultSerializer逐个反序列化列表中的值，而不是整个列表
+    @SuppressWarnings("unchecked")
+    private static RedisSerializer<List<Object>> listElementSerializer(RedisSerializer<Object> elementSerializer) {
+        return (RedisSerializer<List<Object>>) (RedisSerializer<?>) elementSerializer;
+    }
+    private static final long LEASE_MILLIS = TimeUnit.SECONDS.toMillis(RedisConstants.LOCK_SHOP_TTL);
+    private static final String LEASE_ID_PREFIX = UUID.randomUUID().toString() + "-";
+    private final AtomicLong leaseSequence = new AtomicLong();
+
+    // 重建锁按缓存key区分，不同前缀相同id的key不会抢同一把锁
+    // 锁和版本号的key把缓存key放在{}中，集群按{}中的内容（也就是整个缓存key）计算槽，
+    // 和缓存key在同一个槽，cache_cas.lua、cache_logical_get.lua这些多key的脚本不会CROSSSLOT
+    // 缓存key本身不能带{}，否则它按自己{}中的内容计算槽，就对不上了
+    static String lockKey(String key) {
+        return RedisConstants.LOCK_CACHE_KEY + "{" + key + "}";
+    }
+
+    static String versionKey(String key) {
+        return RedisConstants.CACHE_VERSION_KEY + "{" + key + "}";
+    }
+
+    // 查询数据库之前读取版本号，没有版本号（从来没删除过）为0
+    private String readVersion(String key) {
+        String version = stringRedisTemplate.opsForValue().get(versionKey(key));
+        return null == version ? "0" : version;
+    }
+
+    // 批量读取版本号，一次MGET，预热、本地快照核对版本时也会用到
+    public Map<String, String> readVersions(Collection<String> keys) {
+        Map<String, String> versions = new HashMap<>(keys.size());
+        if (keys.isEmpty()) {
+            return versions;
+        }
+        List<String> versionKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            versionKeys.add(versionKey(key));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(versionKeys);
+        int i = 0;
+        for (String key : keys) {
+            String version = null == values ? null : values.get(i++);
+            versions.put(key, null == version ? "0" : version);
+        }
+        return versions;
+    }
+
+    // 版本号还是version时才写入，返回false说明期间缓存被删除过，数据可能已经旧了
+    // time为null表示不设置过期时间
+    private boolean casSet(String key, byte[] value, String version, Long time, TimeUnit unit) {
+        long px = null == time ? 0 : ttlMillis(key, time, unit, false, CacheMetrics.TTL_PHYSICAL);
+        Long result = stringRedisTemplate.execute(CACHE_CAS_SCRIPT, SCRIPT_ARGS_SERIALIZER, CAS_RESULT_SERIALIZER,
+                Arrays.asList(key, versionKey(key)), version, value, px);
+        if (null != result && result == 1L) {
+            return true;
+        }
+        casRejected(key);
+        return false;
+    }
+
+    // 一次pipeline按版本号写入多个key，返回因为版本号变化没有写入的key
+    private Set<String> casPipelined(Map<String, byte[]> values, Map<String, String> versions, Long time, TimeUnit unit) {
+        return casPipelined(values, versions, time, unit, false);
+    }
+
+    // onlyAbsent为true时已经存在的key跳过，不算在返回值中
+    private Set<String> casPipelined(Map<String, byte[]> values, Map<String, String> versions, Long time, TimeUnit unit,
+                                     boolean onlyAbsent) {
+        if (values.isEmpty()) {
+            return Collections.emptySet();
+        }
+        byte[] script = raw(CACHE_CAS_SCRIPT.getScriptAsString());
+        List<String> keys = new ArrayList<>(values.keySet());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                long px = null == time ? 0 : ttlMillis(key, time, unit, false, CacheMetrics.TTL_PHYSICAL);
+                connection.scriptingCommands().eval(script, ReturnType.INTEGER, 2, raw(key), raw(versionKey(key)),
+                        raw(versions.getOrDefault(key, "0")), values.get(key), raw(String.valueOf(px)), raw(onlyAbsent ? "1" : "0"));
+            }
+            return null;
+        });
+        Set<String> rejected = new HashSet<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Object result = results.get(i);
+            if (!(result instanceof Long) || (Long) result == 0L) {
+                rejected.add(keys.get(i));
+                casRejected(keys.get(i));
+            }
+        }
+        return rejected;
+    }
+
+    private void casRejected(String key) {
+        CacheProperties.PrefixSpec spec = specForKey(key);
+        cacheMetrics.casRejected(null == spec.getPrefix() ? "default" : spec.getPrefix());
+        log.debug("缓存版本号已变化，放弃写入，key: {}", key);
+    }
+
+    // 删除缓存，同时通知所有实例删除本地缓存
+    // 删除之前版本号加一，正在进行的重建写入时会发现版本号变了，不会把旧数据写回去
+    public void delete(String key) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            bumpVersion(connection, key);
+            connection.keyCommands().del(raw(key));
+            return null;
+        });
+        localCache.evict(key);
+        hotCache.evict(key);
+        // 其他实例在CacheInvalidationConfig中订阅这个频道
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    // 批量删除缓存，一次pipeline，同时通知所有实例删除本地缓存
+    public void deleteBatch(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                bumpVersion(connection, key);
+                connection.keyCommands().del(raw(key));
+            }
+            return null;
+        });
+        for (String key : keys) {
+            localCache.evict(key);
+            hotCache.evict(key);
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(raw(RedisConstants.CACHE_INVALIDATE_CHANNEL), raw(key));
+            }
+            return null;
+        });
+    }
+
+    // 版本号加一，版本号不设置有效期，只增不减
+    // 有效期到了回到0的话，重建开始时读到0、期间删除过又过期回到0，写入时比较还是相等，旧数据会被写回去（ABA）
+    // 每个删除过的缓存key多一个很小的版本号key，换来重建写入一定能发现期间的删除
+    private static void bumpVersion(RedisConnection connection, String key) {
+        byte[] versionKey = versionKey(key).getBytes(StandardCharsets.UTF_8);
+        connection.stringCommands().incr(versionKey);
+        // 之前设置过有效期的版本号，INCR不会清除有效期
+        connection.keyCommands().persist(versionKey);
+    }
+
+    // 收到失效通知后，只删除本实例的本地缓存
+    public void evictLocal(String key) {
+        localCache.evict(key);
+        hotCache.evict(key);
+    }
+
+    // 配置了本地缓存的前缀中还没过期的数据，key前缀 -> (key -> 值)，写本地快照用
+    // 热点key升级上来的（hotCache）重启之后不再是热点，不需要保存
+    Map<String, Map<String, Object>> localEntries() {
+        Map<String, Map<String, Object>> entries = new HashMap<>();
+        for (String keyPrefix : localCache.prefixes()) {
+            entries.put(keyPrefix, localCache.entries(keyPrefix));
+        }
+        return entries;
+    }
+
+    // 从本地快照恢复，有效期按本地缓存的配置重新计算
+    void restoreLocal(String keyPrefix, String key, Object value) {
+        localCache.put(keyPrefix, key, value);
+    }
+
+    // 用数据库中已有的id构建布隆过滤器，构建完成之前不做拦截
+    public <ID> void initBloomFilter(String keyPrefix, Collection<ID> ids) {
+        CacheProperties.BloomSpec spec = cacheProperties.getBloom();
+        BloomFilter bloomFilter = new BloomFilter(Math.max(spec.getExpectedInsertions(), ids.size() * 2L), spec.getFpp());
+        for (ID id : ids) {
+            bloomFilter.put(id);
+        }
+        CacheProperties.LocalSpec negativeSpec = new CacheProperties.LocalSpec();
+        negativeSpec.setPrefix(keyPrefix);
+        negativeSpec.setMaxSize(spec.getNegativeMaxSize());
+        negativeSpec.setTtlSeconds(spec.getNegativeTtlSeconds());
+        negativeCache.addSegment(negativeSpec);
+        bloomFilters.put(keyPrefix, bloomFilter);
+        log.info("布隆过滤器初始化完成，prefix: {}, size: {}", keyPrefix, ids.size());
+    }
+
+    // 新增数据后放入布隆过滤器，并通知其他实例
+    public <ID> void addToBloomFilter(String keyPrefix, ID id) {
+        String key = keyPrefix + id;
+        addToBloomFilterLocal(key);
+        // 其他实例在CacheInvalidationConfig中订阅这个频道
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_BLOOM_CHANNEL, key);
+    }
+
+    // 收到新增通知后，只更新本实例的布隆过滤器
+    public void addToBloomFilterLocal(String key) {
+        for (Map.Entry<String, BloomFilter> entry : bloomFilters.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().put(key.substring(entry.getKey().length()));
+                negativeCache.evict(key);
+            }
+        }
+    }
+
+    // 布隆过滤器判断一定不存在，或者本地记录过数据库不存在，不需要再查redis和数据库
+    private <ID> boolean isRejected(String keyPrefix, ID id, CacheStats cacheStats, String strategy) {
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if (null == bloomFilter) {
+            return false;
+        }
+        if (!bloomFilter.mightContain(id) || null != negativeCache.get(keyPrefix, keyPrefix + id)) {
+            cacheStats.recordBloomReject();
+            cacheMetrics.request(keyPrefix, strategy, CacheMetrics.RESULT_REJECTED);
+            return true;
+        }
+        return false;
+    }
+
+    // 布隆过滤器判断id是否可能存在，没有布隆过滤器的前缀都返回true
+    public <ID> boolean mightContain(String keyPrefix, ID id) {
+        BloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return null == bloomFilter || (bloomFilter.mightContain(id) && null == negativeCache.get(keyPrefix, keyPrefix + id));
+    }
+
+    // 运行时开启一个前缀的本地缓存，使用LocalSpec的默认配置
+    public void enableLocal(String keyPrefix) {
+        if (localCache.isEnabled(keyPrefix)) {
+            return;
+        }
+        CacheProperties.LocalSpec spec = new CacheProperties.LocalSpec();
+        spec.setPrefix(keyPrefix);
+        localCache.addSegmentIfAbsent(spec);
+    }
+
+    // 关闭运行时开启的本地缓存，application.yaml中配置的保留
+    public void disableLocal(String keyPrefix) {
+        for (CacheProperties.LocalSpec spec : cacheProperties.getLocal()) {
+            if (spec.getPrefix().equals(keyPrefix)) {
+                return;
+            }
+        }
+        localCache.removeSegment(keyPrefix);
+    }
+
+    // key前缀 -> l1、l2的命中统计
+    public Map<String, CacheStats> getStats() {
+        return new HashMap<>(stats);
+    }
+
+    private CacheStats statsOf(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, k -> {
+            CacheStats cacheStats = new CacheStats();
+            cacheMetrics.registerStats(keyPrefix, cacheStats);
+            return cacheStats;
+        });
+    }
+
+    // 记录一次访问，配置了本地缓存的前缀或者热点key走本地缓存
+    private boolean recordAccess(String keyPrefix, String key) {
+        boolean hot = hotKeyDetector.record(key);
+        return hot || localCache.isEnabled(keyPrefix);
+    }
+
+    private boolean localEnabled(String keyPrefix, String key) {
+        return localCache.isEnabled(keyPrefix) || hotKeyDetector.isHot(key);
+    }
+
+    // 配置了本地缓存的前缀使用配置的分段，否则是升级上来的热点key，放到hotCache
+    private LocalCache localStore(String keyPrefix) {
+        if (localCache.isEnabled(keyPrefix)) {
+            return localCache;
+        }
+        if (!hotCache.isEnabled(keyPrefix)) {
+            CacheProperties.HotKeySpec hotKeySpec = cacheProperties.getHotKey();
+            CacheProperties.LocalSpec spec = new CacheProperties.LocalSpec();
+            spec.setPrefix(keyPrefix);
+            spec.setMaxSize(hotKeySpec.getMaxHotKeys());
+            spec.setTtlSeconds(hotKeySpec.getLocalTtlSeconds());
+            hotCache.addSegmentIfAbsent(spec);
+        }
+        return hotCache;
+    }
+
+    // 查询本地缓存，记录命中情况
+    private <R> R getLocal(String keyPrefix, String key, CacheStats cacheStats, String strategy) {
+        R local = localStore(keyPrefix).get(keyPrefix, key);
+        cacheStats.recordL1(null != local);
+        if (null != local) {
+            cacheMetrics.request(keyPrefix, strategy, CacheMetrics.RESULT_L1_HIT);
+        }
+        return local;
     }
 
     // 为解决缓存穿透，使用向缓存写入null方案
     // 定义类型，然后才能返回类型
     // 不知道类型R是啥，函数中序列化的时候需要用，所以在形参中需要告诉我类型是什么
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-        // 1 从redis查询商户缓存
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        CacheStats cacheStats = statsOf(keyPrefix);
+        // 0 布隆过滤器拦截一定不存在的id
+        if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_PASS_THROUGH)) {
+            return null;
+        }
+
+        // 0 先查本地缓存，命中的话不需要访问redis
+        boolean localEnabled = recordAccess(keyPrefix, key);
+        if (localEnabled) {
+            R local = getLocal(keyPrefix, key, cacheStats, CacheMetrics.STRATEGY_PASS_THROUGH);
+            if (null != local) {
+                return local;
+            }
+        }
+
+        // 1 从redis查询商户缓存
+        byte[] bytes = getRaw(key);
+        R cached = isNotBlank(bytes) ? decode(bytes, type) : null;
+        cacheStats.recordL2(null != cached);
 
         // 2 查询是否存在，是否命中
-        if (StrUtil.isNotBlank(json)) { // 空字符串，null，换行等都是false
+        if (null != cached) {
             // 3 存在，直接返回
-            return JSONUtil.toBean(json, type);
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_HIT);
+            if (localEnabled) {
+                localStore(keyPrefix).put(keyPrefix, key, cached);
+            }
+            return cached;
         }
 
         // 解决缓存穿透，将空值（""而不是null）写入，所以判断命中的是否是空值，即空字符串
-        if (null != json) {  // 此处逻辑是前面isNotBlank判断
+        if (null != bytes && bytes.length == 0) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_NULL_HIT);
             return null;
         }
 
-        // 4 不存在，根据ID查询数据库
+        // 4 不存在，根据ID查询数据库，同一个key本实例只有一个线程去查
+        cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_MISS);
+        return singleFlight.execute(key, () -> loadAndCache(keyPrefix, id, dbFallback, time, unit, CacheMetrics.STRATEGY_PASS_THROUGH));
+    }
+
+    // 查询数据库并写入缓存，数据库不存在的写入空值
+    private <R, ID> R loadAndCache(String keyPrefix, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit, String strategy) {
+        String key = keyPrefix + id;
+        // 查询数据库之前读取版本号，写入时版本号变了说明期间数据被修改过
+        String version = readVersion(key);
+        long begin = System.currentTimeMillis();
         R r = dbFallback.apply(id);
+        cacheMetrics.rebuild(keyPrefix, strategy, System.currentTimeMillis() - begin);
 
         // 5 数据库也不存在，返回错误
         if (null == r) {
+            if (bloomFilters.containsKey(keyPrefix)) {
+                // 有布隆过滤器时说明是误判，记在本地就好，不往redis写空值
+                negativeCache.put(keyPrefix, key, Boolean.TRUE);
+                return null;
+            }
             // 为了解决穿透缓存，需要将空值写入
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            casSet(key, new byte[0], version, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
 //            return Result.fail("店铺不存在!");
             return null;
         }
-        // 6 存在，写入redis
-        this.set(key, r, time, unit);
+        // 6 存在，写入redis，版本号变了就不写，本地缓存也不放
+        if (casSet(key, encode(key, r), version, time, unit) && localEnabled(keyPrefix, key)) {
+            localStore(keyPrefix).put(keyPrefix, key, r);
+        }
 
         // 返回店铺信息
 //        return Result.ok(shop);
         return r;
     }
 
+    // 为解决缓存击穿，使用互斥锁
+    // 同一个key本实例只有一个线程去抢redis锁，其他线程等它的结果，不需要各自睡眠重试
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        CacheStats cacheStats = statsOf(keyPrefix);
+        if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_MUTEX)) {
+            return null;
+        }
+        boolean localEnabled = recordAccess(keyPrefix, key);
+        if (localEnabled) {
+            R local = getLocal(keyPrefix, key, cacheStats, CacheMetrics.STRATEGY_MUTEX);
+            if (null != local) {
+                return local;
+            }
+        }
+
+        // 1 从redis查询
+        byte[] bytes = getRaw(key);
+        R cached = isNotBlank(bytes) ? decode(bytes, type) : null;
+        cacheStats.recordL2(null != cached);
+        if (null != cached) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_MUTEX, CacheMetrics.RESULT_HIT);
+            if (localEnabled) {
+                localStore(keyPrefix).put(keyPrefix, key, cached);
+            }
+            return cached;
+        }
+        // 命中空值
+        if (null != bytes && bytes.length == 0) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_MUTEX, CacheMetrics.RESULT_NULL_HIT);
+            return null;
+        }
+        cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_MUTEX, CacheMetrics.RESULT_MISS);
+
+        // 2 实现缓存重建
+        return singleFlight.execute(key, () -> rebuildWithMutex(keyPrefix, id, type, dbFallback, time, unit));
+    }
+
+    private <R, ID> R rebuildWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = lockKey(key);
+        try {
+            // 2 1 获取互斥锁，失败则休眠，再看看其他实例是不是已经重建好了
+            while (!tryLock(lockKey)) {
+                cacheMetrics.lockFailure(keyPrefix, CacheMetrics.STRATEGY_MUTEX);
+                Thread.sleep(50);
+                byte[] bytes = getRaw(key);
+                if (null != bytes) {
+                    return bytes.length == 0 ? null : decode(bytes, type);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            // 2 2 拿到锁之后再检查一次，可能在等锁的时候已经被重建了
+            byte[] bytes = getRaw(key);
+            if (null != bytes) {
+                R cached = bytes.length == 0 ? null : decode(bytes, type);
+                if (bytes.length == 0 || null != cached) {
+                    return cached;
+                }
+            }
+            // 2 3 查询数据库并写入redis
+            return loadAndCache(keyPrefix, id, dbFallback, time, unit, CacheMetrics.STRATEGY_MUTEX);
+        } finally {
+            // 2 4 释放互斥锁
+            unLock(lockKey);
+        }
+    }
+
     // 为解决缓存击穿，使用逻辑过期
     // 热点key一般会提前放入redis
     public <R, ID> R queryWithLogicalExpireById(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-        // 1 从redis查询商户缓存
+        return queryWithLogicalExpireById(keyPrefix, id, type, dbFallback, time, unit, 0);
+    }
+
+    // 逻辑过期 + 概率提前重建（XFetch）
+    // 缓存中记录了上一次重建的耗时delta，离过期越近、重建越慢，越有可能提前重建，
+    // 各个实例的重建分散在过期前的一段时间内，而不是都在过期那一刻一起抢锁
+    // beta越大越倾向提前重建，beta <= 0 时和普通逻辑过期一样
+    public <R, ID> R queryWithLogicalExpireById(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit, double beta) {
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        CacheStats cacheStats = statsOf(keyPrefix);
+        if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_LOGICAL_EXPIRE)) {
+            return null;
+        }
+
+        // 0 先查本地缓存，本地缓存中只放没有逻辑过期的数据
+        boolean localEnabled = recordAccess(keyPrefix, key);
+        if (localEnabled) {
+            R local = getLocal(keyPrefix, key, cacheStats, CacheMetrics.STRATEGY_LOGICAL_EXPIRE);
+            if (null != local) {
+                return local;
+            }
+        }
+
+        // 1 从redis查询商户缓存，已经过期时在同一个脚本中获取重建租约
+        long now = System.currentTimeMillis();
+        double earlyFactor = earlyFactor(beta);
+        String lease = nextLease();
+        List<Object> result = stringRedisTemplate.execute(LOGICAL_GET_SCRIPT, SCRIPT_ARGS_SERIALIZER, SCRIPT_RESULT_SERIALIZER,
+                Arrays.asList(key, lockKey(key)), now, earlyFactor, lease, LEASE_MILLIS);
+        return resolveLogical(keyPrefix, id, type, dbFallback, time, unit, now, earlyFactor,
+                valueOf(result), leaseOf(result, lease), localEnabled);
+    }
+
+    // 逻辑过期，redis中还没有时（没有预热，或者刚切换到逻辑过期）同步加载一次
+    // 同一个key本实例只有一个线程去加载，多个实例之间用重建锁互斥，写入时比较版本号
+    public <R, ID> R queryWithLogicalExpireOrLoad(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                                  Long time, TimeUnit unit, double beta) {
+        R r = queryWithLogicalExpireById(keyPrefix, id, type, dbFallback, time, unit, beta);
+        if (null != r || !mightContain(keyPrefix, id)) {
+            return r;
+        }
+        return singleFlight.execute(keyPrefix + id, () -> loadLogicalWithMutex(keyPrefix, id, type, dbFallback, time, unit));
+    }
+
+    private <R, ID> R loadLogicalWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = lockKey(key);
+        try {
+            // 1 获取互斥锁，失败说明其他实例在加载，休眠之后看看是不是已经写入了
+            while (!tryLock(lockKey)) {
+                cacheMetrics.lockFailure(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE);
+                Thread.sleep(50);
+                RedisData<R> redisData = getLogical(key, type);
+                if (null != redisData) {
+                    return redisData.getData();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            // 2 拿到锁之后再检查一次，可能在等锁的时候已经写入了
+            RedisData<R> redisData = getLogical(key, type);
+            if (null != redisData) {
+                return redisData.getData();
+            }
+            // 3 查询数据库之前读取版本号，版本号没有变化才写入
+            String version = readVersion(key);
+            long begin = System.currentTimeMillis();
+            R r = dbFallback.apply(id);
+            long buildMillis = System.currentTimeMillis() - begin;
+            cacheMetrics.rebuild(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, buildMillis);
+            if (null != r) {
+                casSet(key, encodeLogical(key, r, time, unit, buildMillis, false), version, null, null);
+            }
+            return r;
+        } finally {
+            // 4 释放互斥锁
+            unLock(lockKey);
+        }
+    }
+
+    private <R> RedisData<R> getLogical(String key, Class<R> type) {
+        byte[] bytes = getRaw(key);
+        return isNotBlank(bytes) ? decodeLogical(bytes, type) : null;
+    }
+
+    // 脚本返回的值，key不存在为null
+    private static byte[] valueOf(List<Object> result) {
+        return null == result || result.isEmpty() ? null : (byte[]) result.get(0);
+    }
+
+    // 拿到了租约返回租约标识，否则返回null
+    private static String leaseOf(List<Object> result, String lease) {
+        return null != result && result.size() > 1 && Long.valueOf(1L).equals(result.get(1)) ? lease : null;
+    }
+
+    // 逻辑过期从redis读到数据之后的处理，同步和异步的查询共用
+    // now和earlyFactor要和脚本中判断过期时用的一样；lease为脚本获取到的重建租约，没拿到为null
+    private <R, ID> R resolveLogical(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                     long now, double earlyFactor, byte[] bytes, String lease, boolean localEnabled) {
+        String key = keyPrefix + id;
+        CacheStats cacheStats = statsOf(keyPrefix);
+        // 4 命中，需要判断过期时间，直接解码成目标类型
+        RedisData<R> redisData = isNotBlank(bytes) ? decodeLogical(bytes, type) : null;
+        cacheStats.recordL2(null != redisData);
 
         // 2 查询是否存在，是否命中
-        if (StrUtil.isBlank(json)) {
+        if (null == redisData) {
             // 3 不存在，直接返回，因为一般热点代码，都会提前放入redis中的
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, CacheMetrics.RESULT_MISS);
+            releaseLease(lockKey(key), lease);
             return null;
         }
 
-        // 4 命中，需要判断过期时间，把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        R r = redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
 
         // 5 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5 1 未过期，直接返回店铺信息
+        long expireAt = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long buildMillis = null == redisData.getBuildMillis() ? 0 : redisData.getBuildMillis();
+        if (null == lease && now + buildMillis * earlyFactor < expireAt) {
+            // 5 1 未过期，直接返回店铺信息，本地缓存不能超过逻辑过期时间
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, CacheMetrics.RESULT_HIT);
+            if (localEnabled) {
+                localStore(keyPrefix).put(keyPrefix, key, r, expireAt);
+            }
+            return r;
+        }
+
+        // 5 2 已经过期（或者提前重建），需要缓存重建
+        cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, CacheMetrics.RESULT_STALE);
+        // 6 有头部的数据脚本已经判断过了，没拿到租约说明其他线程或实例在重建，直接返回旧数据
+        if (null == lease && LogicalExpireHeader.hasHeader(bytes)) {
+            cacheMetrics.lockFailure(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE);
             return r;
         }
+        // 6 缓存重建，交给重建线程池
+        scheduleRebuild(keyPrefix, id, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, dbFallback, lease,
+                (r1, millis, version) -> casSet(key, encodeLogical(key, r1, time, unit, millis, false), version, null, null));
 
-        // 5 2 已经过期，需要缓存重建
-        // 6 缓存重建
-        // 6 1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        // 7 返回过期的商铺信息，注意，知道过期了，开启了另外一个线程重建，但是这次返回的还是过期状态
+        return r;
+    }
 
-        // 6 2 判断是否获取锁成功
-        if (isLock) {
-            // 6 3 成功，开启独立线程，执行重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    // 1 查询数据库
-                    R r1 = dbFallback.apply(id);
-                    System.out.println(r1);
-                    // 2 写入redis
-                    this.setWithLogical(key, r1, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁
+    // 异步重建一个key，本实例已经在排队的key不会重复提交（判断和登记在CacheRebuildScheduler中一次完成）
+    // 队列满了会被拒绝，这次和下次请求都先返回旧数据，等队列空出来再重建
+    // writer把查询结果和重建耗时按版本号写入redis
+    // lease为读取时已经获取到的重建租约，为null时在重建线程中再获取互斥锁
+    private <R, ID> void scheduleRebuild(String keyPrefix, ID id, String strategy, Function<ID, R> dbFallback,
+                                         String lease, RebuildWriter<R> writer) {
+        String key = keyPrefix + id;
+        String lockKey = lockKey(key);
+        boolean submitted = rebuildScheduler.submit(keyPrefix, key, () -> {
+            // 1 没有租约的在重建线程中获取互斥锁，排队期间不占用redis锁，其他实例在重建的直接跳过
+            if (null == lease && !tryLock(lockKey)) {
+                cacheMetrics.lockFailure(keyPrefix, strategy);
+                return;
+            }
+            try {
+                // 2 查询数据库，记录重建耗时，提前重建时要用；查询之前读取版本号
+                String version = readVersion(key);
+                long begin = System.currentTimeMillis();
+                R r = dbFallback.apply(id);
+                long buildMillis = System.currentTimeMillis() - begin;
+                cacheMetrics.rebuild(keyPrefix, strategy, buildMillis);
+                log.debug("缓存重建完成，key: {}, 耗时: {}ms", key, buildMillis);
+                // 3 版本号没有变化才写入redis
+                writer.write(r, buildMillis, version);
+            } finally {
+                // 释放锁，租约只有标识一致才释放，排队太久租约过期后可能已经被别人拿到了
+                if (null == lease) {
                     unLock(lockKey);
+                } else {
+                    releaseLease(lockKey, lease);
+                }
+            }
+        });
+        // 本实例已经在重建或者队列满了，这个租约用不上，马上释放
+        if (!submitted) {
+            releaseLease(lockKey, lease);
+        }
+    }
+
+    // 租约标识：实例标识 + 自增序号，不需要每次读取都生成UUID
+    private String nextLease() {
+        return LEASE_ID_PREFIX + leaseSequence.incrementAndGet();
+    }
+
+    private void releaseLease(String lockKey, String lease) {
+        if (null != lease) {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), lease);
+        }
+    }
+
+    // XFetch的提前重建系数 beta * -ln(rand)，rand在(0,1]之间，-ln(rand)服从指数分布
+    // now + buildMillis * earlyFactor >= expireAt 时提前重建，beta <= 0 时为0，和普通逻辑过期一样
+    private static double earlyFactor(double beta) {
+        if (beta <= 0) {
+            return 0;
+        }
+        double rand = 1 - ThreadLocalRandom.current().nextDouble();
+        return -beta * Math.log(rand);
+    }
+
+    // 重建结果的写入方式，version为查询数据库之前读到的版本号
+    @FunctionalInterface
+    private interface RebuildWriter<R> {
+        void write(R r, long buildMillis, String version);
+    }
+
+    // stale-while-revalidate：软过期 + 硬过期
+    // 软过期时间记录在RedisData中，过了软过期返回旧数据，同时在后台重建一次
+    // 硬过期是redis的过期时间，冷门的key过了硬过期就从redis中删除了，下一次像缓存穿透方案一样同步查询数据库
+    // 热点key一直在软过期之后被后台刷新，不会有请求同步等待数据库；冷门key不需要预热，也不会一直占用内存
+    public <R, ID> R queryWithStaleWhileRevalidate(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                                   Long softTime, Long hardTime, TimeUnit unit) {
+        String key = keyPrefix + id;
+        CacheStats cacheStats = statsOf(keyPrefix);
+        if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE)) {
+            return null;
+        }
+        // 0 本地缓存中只放没有软过期的数据
+        boolean localEnabled = recordAccess(keyPrefix, key);
+        if (localEnabled) {
+            R local = getLocal(keyPrefix, key, cacheStats, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE);
+            if (null != local) {
+                return local;
+            }
+        }
+
+        // 1 从redis查询
+        byte[] bytes = getRaw(key);
+        RedisData<R> redisData = isNotBlank(bytes) ? decodeLogical(bytes, type) : null;
+        cacheStats.recordL2(null != redisData);
+
+        // 2 命中空值
+        if (null != bytes && bytes.length == 0) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE, CacheMetrics.RESULT_NULL_HIT);
+            return null;
+        }
+
+        // 3 已经硬过期（或者从来没写过），同步查询数据库，同一个key本实例只有一个线程去查
+        if (null == redisData) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE, CacheMetrics.RESULT_MISS);
+            return singleFlight.execute(key, () -> {
+                String version = readVersion(key);
+                long begin = System.currentTimeMillis();
+                R r = dbFallback.apply(id);
+                long buildMillis = System.currentTimeMillis() - begin;
+                cacheMetrics.rebuild(keyPrefix, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE, buildMillis);
+                if (null == r && bloomFilters.containsKey(keyPrefix)) {
+                    negativeCache.put(keyPrefix, key, Boolean.TRUE);
+                    return null;
                 }
+                setWithSoftTtl(key, r, softTime, hardTime, unit, buildMillis, version);
+                return r;
             });
         }
 
-        // 6 4 返回过期的商铺信息，注意，知道过期了，开启了另外一个线程重建，但是这次返回的还是过期状态
+        // 4 没有软过期，直接返回
+        R r = redisData.getData();
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        if (expireAt > System.currentTimeMillis()) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE, CacheMetrics.RESULT_HIT);
+            if (localEnabled) {
+                localStore(keyPrefix).put(keyPrefix, key, r, expireAt);
+            }
+            return r;
+        }
+
+        // 5 软过期了，返回旧数据，后台重建一次
+        cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE, CacheMetrics.RESULT_STALE);
+        scheduleRebuild(keyPrefix, id, CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE, dbFallback, null,
+                (r1, buildMillis, version) -> setWithSoftTtl(key, r1, softTime, hardTime, unit, buildMillis, version));
         return r;
     }
 
-    // 线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    // 软过期时间写在RedisData中，硬过期作为redis的过期时间，数据库中不存在的写入空值
+    // 版本号变了返回false，什么也不写
+    private boolean setWithSoftTtl(String key, Object value, Long softTime, Long hardTime, TimeUnit unit, Long buildMillis,
+                                   String version) {
+        if (null == value) {
+            return casSet(key, new byte[0], version, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        }
+        return casSet(key, encodeLogical(key, value, softTime, unit, buildMillis, false), version, hardTime, unit);
+    }
+
+    // 异步的缓存穿透方案，返回CompletableFuture，多个独立的查询可以同时发出再组合结果
+    // redis查询不阻塞调用线程，未命中时在asyncDbExecutor中查询数据库并写回
+    public <R, ID> CompletableFuture<R> queryWithPassThroughAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                                                  Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        CacheStats cacheStats = statsOf(keyPrefix);
+        // 0 布隆过滤器和本地缓存不需要网络，直接返回
+        if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_PASS_THROUGH)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        boolean localEnabled = recordAccess(keyPrefix, key);
+        if (localEnabled) {
+            R local = getLocal(keyPrefix, key, cacheStats, CacheMetrics.STRATEGY_PASS_THROUGH);
+            if (null != local) {
+                return CompletableFuture.completedFuture(local);
+            }
+        }
+
+        // 1 异步查询redis
+        return asyncCommands.get(key).toCompletableFuture().thenCompose(bytes -> {
+            R cached = isNotBlank(bytes) ? decode(bytes, type) : null;
+            cacheStats.recordL2(null != cached);
+            // 2 命中
+            if (null != cached) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_HIT);
+                if (localEnabled) {
+                    localStore(keyPrefix).put(keyPrefix, key, cached);
+                }
+                return CompletableFuture.completedFuture(cached);
+            }
+            // 3 命中空值
+            if (null != bytes && bytes.length == 0) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_NULL_HIT);
+                return CompletableFuture.completedFuture(null);
+            }
+            // 4 未命中，在数据库线程池中查询并写回，同一个key本实例只有一个线程去查
+            cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_MISS);
+            return CompletableFuture.supplyAsync(() -> singleFlight.execute(key,
+                    () -> loadAndCache(keyPrefix, id, dbFallback, time, unit, CacheMetrics.STRATEGY_PASS_THROUGH)),
+                    asyncDbExecutor);
+        });
+    }
+
+    // 异步的逻辑过期方案，过期时和同步版本一样交给重建线程池，这次返回旧数据
+    public <R, ID> CompletableFuture<R> queryWithLogicalExpireAsync(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                                                    Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        CacheStats cacheStats = statsOf(keyPrefix);
+        if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_LOGICAL_EXPIRE)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        boolean localEnabled = recordAccess(keyPrefix, key);
+        if (localEnabled) {
+            R local = getLocal(keyPrefix, key, cacheStats, CacheMetrics.STRATEGY_LOGICAL_EXPIRE);
+            if (null != local) {
+                return CompletableFuture.completedFuture(local);
+            }
+        }
+        // 和同步版本一样，读取和获取重建租约一次往返
+        long now = System.currentTimeMillis();
+        String lease = nextLease();
+        String[] keys = {key, lockKey(key)};
+        byte[][] args = {raw(String.valueOf(now)), raw("0"), raw(lease), raw(String.valueOf(LEASE_MILLIS))};
+        return asyncCommands.<List<Object>>evalsha(LOGICAL_GET_SCRIPT.getSha1(), ScriptOutputType.MULTI, keys, args)
+                .toCompletableFuture()
+                .handle((result, e) -> {
+                    if (null == e) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    // redis重启或者SCRIPT FLUSH之后脚本不在了，带上脚本内容再执行一次
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                    if (!(cause instanceof RedisNoScriptException)) {
+                        throw new CompletionException(cause);
+                    }
+                    return asyncCommands.<List<Object>>eval(LOGICAL_GET_SCRIPT.getScriptAsString(), ScriptOutputType.MULTI, keys, args)
+                            .toCompletableFuture();
+                })
+                .thenCompose(Function.identity())
+                // resolveLogical会同步访问redis（释放租约、提交重建），不能在lettuce的IO线程中执行
+                .thenApplyAsync(result -> resolveLogical(keyPrefix, id, type, dbFallback, time, unit, now, 0,
+                        valueOf(result), leaseOf(result, lease), localEnabled), asyncDbExecutor);
+    }
+
+    // 批量查询，解决缓存穿透，一次MGET，未命中的一次IN查询数据库，再一次pipeline写回redis
+    // dbFallback根据一批id查询数据库，返回id -> 数据，数据库没有的id不放进map
+    // 返回结果和ids的顺序一致，不存在的id跳过
+    public <R, ID> List<R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                     Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        CacheStats cacheStats = statsOf(keyPrefix);
+        Map<ID, R> found = new HashMap<>();
+        // 1 过滤掉布隆过滤器拦截的id，先查本地缓存
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_PASS_THROUGH)) {
+                continue;
+            }
+            if (recordAccess(keyPrefix, keyPrefix + id)) {
+                R local = getLocal(keyPrefix, keyPrefix + id, cacheStats, CacheMetrics.STRATEGY_PASS_THROUGH);
+                if (null != local) {
+                    found.put(id, local);
+                    continue;
+                }
+            }
+            remoteIds.add(id);
+        }
+
+        // 2 一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        List<byte[]> values = multiGet(keyPrefix, remoteIds);
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = values.get(i);
+            R r = isNotBlank(bytes) ? decode(bytes, type) : null;
+            cacheStats.recordL2(null != r);
+            if (null != r) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_HIT);
+                found.put(id, r);
+                if (localEnabled(keyPrefix, keyPrefix + id)) {
+                    localStore(keyPrefix).put(keyPrefix, keyPrefix + id, r);
+                }
+            } else if (null == bytes || bytes.length > 0) {
+                // 空字符串是之前写入的空值，说明数据库也没有，不需要再查
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_MISS);
+                missIds.add(id);
+            } else {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, CacheMetrics.RESULT_NULL_HIT);
+            }
+        }
+
+        // 3 未命中的一次查询数据库，再一次pipeline写回
+        if (!missIds.isEmpty()) {
+            Map<String, String> versions = readVersions(keysOf(keyPrefix, missIds));
+            long begin = System.currentTimeMillis();
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            cacheMetrics.rebuild(keyPrefix, CacheMetrics.STRATEGY_PASS_THROUGH, System.currentTimeMillis() - begin);
+            Map<String, byte[]> loadedValues = new HashMap<>(missIds.size());
+            Map<String, byte[]> nullValues = new HashMap<>();
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                String key = keyPrefix + id;
+                if (null == r) {
+                    if (bloomFilters.containsKey(keyPrefix)) {
+                        negativeCache.put(keyPrefix, key, Boolean.TRUE);
+                    } else {
+                        nullValues.put(key, new byte[0]);
+                    }
+                    continue;
+                }
+                found.put(id, r);
+                loadedValues.put(key, encode(key, r));
+            }
+            Set<String> rejected = casPipelined(loadedValues, versions, time, unit);
+            casPipelined(nullValues, versions, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            // 版本号变了的没有写入redis，本地缓存也不放
+            for (ID id : missIds) {
+                String key = keyPrefix + id;
+                if (loadedValues.containsKey(key) && !rejected.contains(key) && localEnabled(keyPrefix, key)) {
+                    localStore(keyPrefix).put(keyPrefix, key, found.get(id));
+                }
+            }
+        }
+        return inOrder(ids, found);
+    }
+
+    // 批量查询，逻辑过期
+    // redis中没有的（没有预热的）一次查询数据库并写入，过期的获取锁之后在一个线程中一次性重建
+    public <R, ID> List<R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                       Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        CacheStats cacheStats = statsOf(keyPrefix);
+        Map<ID, R> found = new HashMap<>();
+        // 1 过滤掉布隆过滤器拦截的id，先查本地缓存
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_LOGICAL_EXPIRE)) {
+                continue;
+            }
+            if (recordAccess(keyPrefix, keyPrefix + id)) {
+                R local = getLocal(keyPrefix, keyPrefix + id, cacheStats, CacheMetrics.STRATEGY_LOGICAL_EXPIRE);
+                if (null != local) {
+                    found.put(id, local);
+                    continue;
+                }
+            }
+            remoteIds.add(id);
+        }
+
+        // 2 一次MGET查询redis，区分未命中和已过期
+        List<ID> missIds = new ArrayList<>();
+        List<ID> expiredIds = new ArrayList<>();
+        List<byte[]> rawValues = multiGet(keyPrefix, remoteIds);
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] bytes = rawValues.get(i);
+            RedisData<R> redisData = isNotBlank(bytes) ? decodeLogical(bytes, type) : null;
+            cacheStats.recordL2(null != redisData);
+            if (null == redisData) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, CacheMetrics.RESULT_MISS);
+                missIds.add(id);
+                continue;
+            }
+            R r = redisData.getData();
+            found.put(id, r);
+            if (redisData.getExpireTime().isAfter(now)) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, CacheMetrics.RESULT_HIT);
+                if (localEnabled(keyPrefix, keyPrefix + id)) {
+                    localStore(keyPrefix).put(keyPrefix, keyPrefix + id, r,
+                            redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                }
+            } else {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, CacheMetrics.RESULT_STALE);
+                expiredIds.add(id);
+            }
+        }
+
+        // 3 没有预热的，一次查询数据库，一次pipeline写回
+        if (!missIds.isEmpty()) {
+            Map<String, String> versions = readVersions(keysOf(keyPrefix, missIds));
+            long begin = System.currentTimeMillis();
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            long buildMillis = System.currentTimeMillis() - begin;
+            cacheMetrics.rebuild(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, buildMillis);
+            Map<String, byte[]> values = new HashMap<>(loaded.size());
+            for (Map.Entry<ID, R> entry : loaded.entrySet()) {
+                found.put(entry.getKey(), entry.getValue());
+                String key = keyPrefix + entry.getKey();
+                values.put(key, encodeLogical(key, entry.getValue(), time, unit, buildMillis, true));
+            }
+            casPipelined(values, versions, null, null);
+        }
+
+        // 4 已过期的，本实例没在重建的那部分作为一个任务一次性重建，这次还是返回过期的数据
+        List<ID> staleIds = new ArrayList<>();
+        List<String> staleKeys = new ArrayList<>();
+        for (ID id : expiredIds) {
+            if (!rebuildScheduler.touch(keyPrefix + id)) {
+                staleIds.add(id);
+                staleKeys.add(keyPrefix + id);
+            }
+        }
+        if (!staleIds.isEmpty()) {
+            rebuildScheduler.submit(keyPrefix, staleKeys, () -> {
+                // 在重建线程中获取互斥锁，其他实例在重建的跳过
+                List<ID> lockedIds = new ArrayList<>();
+                for (ID id : staleIds) {
+                    if (tryLock(lockKey(keyPrefix + id))) {
+                        lockedIds.add(id);
+                    } else {
+                        cacheMetrics.lockFailure(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE);
+                    }
+                }
+                if (lockedIds.isEmpty()) {
+                    return;
+                }
+                try {
+                    Map<String, String> versions = readVersions(keysOf(keyPrefix, lockedIds));
+                    long begin = System.currentTimeMillis();
+                    Map<ID, R> loaded = dbFallback.apply(lockedIds);
+                    long buildMillis = System.currentTimeMillis() - begin;
+                    cacheMetrics.rebuild(keyPrefix, CacheMetrics.STRATEGY_LOGICAL_EXPIRE, buildMillis);
+                    Map<String, byte[]> values = new HashMap<>(loaded.size());
+                    for (Map.Entry<ID, R> entry : loaded.entrySet()) {
+                        String key = keyPrefix + entry.getKey();
+                        values.put(key, encodeLogical(key, entry.getValue(), time, unit, buildMillis, true));
+                    }
+                    casPipelined(values, versions, null, null);
+                } finally {
+                    for (ID id : lockedIds) {
+                        unLock(lockKey(keyPrefix + id));
+                    }
+                }
+            });
+        }
+        return inOrder(ids, found);
+    }
+
+    private <ID> List<byte[]> multiGet(String keyPrefix, List<ID> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        byte[][] keys = new byte[ids.size()][];
+        for (int i = 0; i < ids.size(); i++) {
+            keys[i] = raw(keyPrefix + ids.get(i));
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(keys));
+        // 在pipeline或事务中会返回null
+        return null == values ? Collections.nCopies(keys.length, null) : values;
+    }
+
+    private static <ID> List<String> keysOf(String keyPrefix, Collection<ID> ids) {
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(keyPrefix + id);
+        }
+        return keys;
+    }
+
+    // 按调用方传入的id顺序返回，不存在的跳过
+    private <R, ID> List<R> inOrder(Collection<ID> ids, Map<ID, R> found) {
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (null != r) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    // hash缓存的标记字段，1表示实体存在，0表示数据库中不存在（空值）
+    // 查询部分字段时也会带上它，用来区分缓存未命中和字段本身为空
+    private static final String HASH_MARKER_FIELD = "_";
+
+    private static final DefaultRedisScript<Long> HASH_UPDATE_SCRIPT;
+    // 版本号没有变化才写入hash，见cache_hash_cas.lua
+    private static final DefaultRedisScript<Long> HASH_CAS_SCRIPT;
+    static {
+        HASH_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        HASH_UPDATE_SCRIPT.setLocation(new ClassPathResource("hash_update.lua"));
+        HASH_UPDATE_SCRIPT.setResultType(Long.class);
+        HASH_CAS_SCRIPT = new DefaultRedisScript<>();
+        HASH_CAS_SCRIPT.setLocation(new ClassPathResource("cache_hash_cas.lua"));
+        HASH_CAS_SCRIPT.setResultType(Long.class);
+    }
+
+    // hash缓存，解决缓存穿透，只读取需要的字段（HMGET），fields为空时读取全部字段
+    // 返回的对象只有fields中的属性有值
+    public <R, ID> R queryHashWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                              Long time, TimeUnit unit, String... fields) {
+        List<R> list = queryBatchHashWithPassThrough(keyPrefix, Collections.singletonList(id), type, ids -> {
+            R r = dbFallback.apply(id);
+            return null == r ? Collections.emptyMap() : Collections.singletonMap(id, r);
+        }, time, unit, fields);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    // 批量查询hash缓存，一次pipeline的HMGET，未命中的一次查询数据库，再一次pipeline写回
+    public <R, ID> List<R> queryBatchHashWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                         Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                         Long time, TimeUnit unit, String... fields) {
+        CacheStats cacheStats = statsOf(keyPrefix);
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!isRejected(keyPrefix, id, cacheStats, CacheMetrics.STRATEGY_HASH)) {
+                remoteIds.add(id);
+            }
+        }
+
+        // 1 一次pipeline读取所有的hash
+        List<Map<String, String>> hashes = multiGetHash(keyPrefix, remoteIds, fields);
+        Map<ID, R> found = new HashMap<>();
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            Map<String, String> hash = hashes.get(i);
+            String marker = hash.get(HASH_MARKER_FIELD);
+            cacheStats.recordL2(null != marker);
+            if (null == marker) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_HASH, CacheMetrics.RESULT_MISS);
+                missIds.add(remoteIds.get(i));
+            } else if ("1".equals(marker)) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_HASH, CacheMetrics.RESULT_HIT);
+                found.put(remoteIds.get(i), fromHash(hash, type));
+            } else {
+                cacheMetrics.request(keyPrefix, CacheMetrics.STRATEGY_HASH, CacheMetrics.RESULT_NULL_HIT);
+            }
+            // 标记为0是之前写入的空值，数据库中也没有
+        }
+
+        // 2 未命中的一次查询数据库，写回完整的hash，再按fields返回；查询之前读取版本号
+        if (!missIds.isEmpty()) {
+            Map<String, String> versions = readVersions(keysOf(keyPrefix, missIds));
+            long begin = System.currentTimeMillis();
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            cacheMetrics.rebuild(keyPrefix, CacheMetrics.STRATEGY_HASH, System.currentTimeMillis() - begin);
+            Map<String, Map<String, String>> values = new HashMap<>(missIds.size());
+            Map<String, Map<String, String>> nullValues = new HashMap<>();
+            for (ID id : missIds) {
+                R r = loaded.get(id);
+                String key = keyPrefix + id;
+                if (null == r) {
+                    if (bloomFilters.containsKey(keyPrefix)) {
+                        negativeCache.put(keyPrefix, key, Boolean.TRUE);
+                    } else {
+                        nullValues.put(key, Collections.singletonMap(HASH_MARKER_FIELD, "0"));
+                    }
+                    continue;
+                }
+                Map<String, String> hash = toHash(r);
+                values.put(key, hash);
+                found.put(id, fields.length == 0 ? r : fromHash(project(hash, fields), type));
+            }
+            casHashes(values, versions, time, unit);
+            casHashes(nullValues, versions, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        }
+        return inOrder(ids, found);
+    }
+
+    // 只更新hash缓存中的一个字段，缓存不存在时不更新，返回是否更新了
+    public boolean updateHashField(String key, String field, Object value) {
+        return updateHash(key, "set", field, toHashValue(value));
+    }
+
+    // 只对hash缓存中的一个数字字段加减，例如销量、评论数
+    public boolean incrementHashField(String key, String field, long delta) {
+        return updateHash(key, "incr", field, String.valueOf(delta));
+    }
+
+    private boolean updateHash(String key, String op, String field, String value) {
+        Long result = stringRedisTemplate.execute(HASH_UPDATE_SCRIPT, Collections.singletonList(key), op, field, value);
+        return null != result && result == 1;
+    }
+
+    private <ID> List<Map<String, String>> multiGetHash(String keyPrefix, List<ID> ids, String[] fields) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 查询部分字段时带上标记字段
+        String[] wanted = fields.length == 0 ? fields : Arrays.copyOf(fields, fields.length + 1);
+        if (fields.length > 0) {
+            wanted[fields.length] = HASH_MARKER_FIELD;
+        }
+        byte[][] rawFields = new byte[wanted.length][];
+        for (int i = 0; i < wanted.length; i++) {
+            rawFields[i] = raw(wanted[i]);
+        }
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                if (wanted.length == 0) {
+                    connection.hashCommands().hGetAll(raw(keyPrefix + id));
+                } else {
+                    connection.hashCommands().hMGet(raw(keyPrefix + id), rawFields);
+                }
+            }
+            return null;
+        });
+        List<Map<String, String>> hashes = new ArrayList<>(ids.size());
+        for (Object result : results) {
+            Map<String, String> hash = new HashMap<>();
+            if (result instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) result).entrySet()) {
+                    hash.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+                }
+            } else if (result instanceof List) {
+                List<?> values = (List<?>) result;
+                for (int i = 0; i < wanted.length && i < values.size(); i++) {
+                    if (null != values.get(i)) {
+                        hash.put(wanted[i], String.valueOf(values.get(i)));
+                    }
+                }
+            }
+            hashes.add(hash);
+        }
+        return hashes;
+    }
+
+    // 一次pipeline按版本号写入多个hash，版本号变了的不写入
+    private void casHashes(Map<String, Map<String, String>> hashes, Map<String, String> versions, Long time, TimeUnit unit) {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        byte[] script = raw(HASH_CAS_SCRIPT.getScriptAsString());
+        List<String> keys = new ArrayList<>(hashes.keySet());
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                Map<String, String> hash = hashes.get(key);
+                long px = null == time ? 0 : ttlMillis(key, time, unit, false, CacheMetrics.TTL_PHYSICAL);
+                byte[][] keysAndArgs = new byte[4 + hash.size() * 2][];
+                keysAndArgs[0] = raw(key);
+                keysAndArgs[1] = raw(versionKey(key));
+                keysAndArgs[2] = raw(versions.getOrDefault(key, "0"));
+                keysAndArgs[3] = raw(String.valueOf(px));
+                int i = 4;
+                for (Map.Entry<String, String> entry : hash.entrySet()) {
+                    keysAndArgs[i++] = raw(entry.getKey());
+                    keysAndArgs[i++] = raw(entry.getValue());
+                }
+                connection.scriptingCommands().eval(script, ReturnType.INTEGER, 2, keysAndArgs);
+            }
+            return null;
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            Object result = results.get(i);
+            if (!(result instanceof Long) || (Long) result != 1L) {
+                casRejected(keys.get(i));
+            }
+        }
+    }
+
+    // 和UserServiceImpl中保存登录用户一样，stringRedisTemplate要求字段值都是字符串，空的属性不存
+    private Map<String, String> toHash(Object value) {
+        Map<String, Object> map = BeanUtil.beanToMap(value, new HashMap<>(),
+                CopyOptions.create()
+                        .setIgnoreNullValue(true)
+                        .setFieldValueEditor((fieldName, fieldValue) -> toHashValue(fieldValue)));
+        Map<String, String> hash = new HashMap<>(map.size() + 1);
+        map.forEach((field, fieldValue) -> hash.put(field, (String) fieldValue));
+        hash.put(HASH_MARKER_FIELD, "1");
+        return hash;
+    }
+
+    // LocalDateTime.toString带纳秒，hutool转回来会出错，统一用到毫秒的格式
+    private static String toHashValue(Object value) {
+        if (null == value) {
+            return null;
+        }
+        if (value instanceof LocalDateTime) {
+            return LocalDateTimeUtil.format((LocalDateTime) value, DatePattern.NORM_DATETIME_MS_PATTERN);
+        }
+        return value.toString();
+    }
+
+    private static <R> R fromHash(Map<String, String> hash, Class<R> type) {
+        Map<String, String> fields = new HashMap<>(hash);
+        fields.remove(HASH_MARKER_FIELD);
+        return BeanUtil.fillBeanWithMap(fields, ReflectUtil.newInstance(type), false);
+    }
+
+    private static Map<String, String> project(Map<String, String> hash, String[] fields) {
+        Map<String, String> projected = new HashMap<>(fields.length);
+        for (String field : fields) {
+            if (hash.containsKey(field)) {
+                projected.put(field, hash.get(field));
+            }
+        }
+        return projected;
+    }
 
 
 
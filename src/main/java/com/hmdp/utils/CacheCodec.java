@@ -0,0 +1,18 @@
+package com.hmdp.utils;
+
+// 缓存值的编解码，CacheClient按key前缀选择编码方式
+// 解码时根据字节头判断格式，切换编码方式后redis里旧格式的数据依然能读
+public interface CacheCodec {
+
+    // 编码方式的名字，对应配置中的codec
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    byte[] encodeLogical(RedisData<?> redisData);
+
+    // 直接把data解码成目标类型，不再经过中间的JSONObject
+    <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// 缓存值的压缩，Deflate（BEST_SPEED）
+// 格式：1字节MAGIC + 4字节原始长度 + 压缩后的数据
+// 没有压缩的值（json以'{'、'"'等开头，二进制以0xB1开头）不受影响，读取时按第一个字节判断
+public final class CacheCompressor {
+
+    public static final byte MAGIC = (byte) 0xC7;
+    private static final int HEADER_LENGTH = 5;
+    // 解压后最大的长度，头部的长度超过这个值当作数据损坏，不按它分配内存
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+    // deflate的压缩比最多约1032:1，头部的长度超过压缩数据的这么多倍也是损坏的
+    private static final int MAX_RATIO = 1032;
+
+    private CacheCompressor() {
+    }
+
+    public static boolean isCompressed(byte[] bytes) {
+        return null != bytes && bytes.length > HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+
+    // 压缩后没有变小返回null，调用方直接存原始数据
+    public static byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+            out.write(MAGIC);
+            out.write(ByteBuffer.allocate(4).putInt(bytes.length).array(), 0, 4);
+            byte[] buffer = new byte[Math.max(64, Math.min(bytes.length, 8192))];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+                if (out.size() >= bytes.length) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static byte[] decompress(byte[] bytes) {
+        int length = ByteBuffer.wrap(bytes, 1, 4).getInt();
+        if (length < 0 || length > MAX_LENGTH || (long) length > (long) (bytes.length - HEADER_LENGTH) * MAX_RATIO) {
+            throw new IllegalStateException("缓存数据解压失败，原始长度不正确: " + length);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(result, offset, length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                offset += n;
+            }
+            // 必须正好解压出length个字节，并且压缩数据正好用完
+            if (offset == length && !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                // 还能解压出数据，比头部的长度长
+                offset++;
+            }
+            if (offset != length || !inflater.finished() || inflater.getRemaining() > 0) {
+                throw new IllegalStateException("缓存数据解压失败，长度不一致");
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// 缓存的指标，通过actuator的/actuator/metrics查看
+// 所有指标都带prefix（key前缀）和strategy（缓存策略）两个tag
+@Component
+public class CacheMetrics {
+
+    public static final String STRATEGY_PASS_THROUGH = "pass_through";
+    public static final String STRATEGY_MUTEX = "mutex";
+    public static final String STRATEGY_LOGICAL_EXPIRE = "logical_expire";
+    public static final String STRATEGY_HASH = "hash";
+    public static final String STRATEGY_STALE_WHILE_REVALIDATE = "stale_while_revalidate";
+
+    // 一次查询的结果
+    public static final String RESULT_L1_HIT = "l1_hit";     // 本地缓存命中
+    public static final String RESULT_HIT = "hit";           // redis命中
+    public static final String RESULT_NULL_HIT = "null_hit"; // 命中空值
+    public static final String RESULT_STALE = "stale";       // 逻辑过期，返回了旧数据
+    public static final String RESULT_MISS = "miss";         // 未命中
+    public static final String RESULT_REJECTED = "rejected"; // 布隆过滤器拦截
+
+    // 过期时间的类型
+    public static final String TTL_PHYSICAL = "physical"; // redis的过期时间
+    public static final String TTL_LOGICAL = "logical";   // 逻辑过期时间
+
+    private final MeterRegistry meterRegistry;
+
+    // Counter和Timer按名字+tag缓存，避免每次都去registry里查找
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void request(String keyPrefix, String strategy, String result) {
+        counters.computeIfAbsent("requests|" + keyPrefix + "|" + strategy + "|" + result,
+                k -> Counter.builder("cache.requests")
+                        .description("缓存查询次数")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .tag("result", result)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    // 重建缓存时没有抢到redis锁
+    public void lockFailure(String keyPrefix, String strategy) {
+        counters.computeIfAbsent("lock|" + keyPrefix + "|" + strategy,
+                k -> Counter.builder("cache.lock.failures")
+                        .description("缓存重建获取锁失败次数")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    // 缓存重建（查询数据库并写入redis）的耗时
+    public void rebuild(String keyPrefix, String strategy, long millis) {
+        timers.computeIfAbsent(keyPrefix + "|" + strategy,
+                k -> Timer.builder("cache.rebuild")
+                        .description("缓存重建耗时")
+                        .tag("prefix", keyPrefix)
+                        .tag("strategy", strategy)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry))
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    // 重建队列满了，没有排上队，这次继续返回旧数据
+    public void rebuildRejected(String keyPrefix) {
+        counters.computeIfAbsent("rejected|" + keyPrefix,
+                k -> Counter.builder("cache.rebuild.rejected")
+                        .description("缓存重建队列已满被拒绝的次数")
+                        .tag("prefix", keyPrefix)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    // 异步重建抛出了异常
+    public void rebuildFailure(String keyPrefix) {
+        counters.computeIfAbsent("failure|" + keyPrefix,
+                k -> Counter.builder("cache.rebuild.failures")
+                        .description("缓存重建失败次数")
+                        .tag("prefix", keyPrefix)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    // 重建期间缓存被删除过（版本号变了），放弃写入
+    public void casRejected(String keyPrefix) {
+        counters.computeIfAbsent("cas|" + keyPrefix,
+                k -> Counter.builder("cache.cas.rejected")
+                        .description("版本号变化放弃写入缓存的次数")
+                        .tag("prefix", keyPrefix)
+                        .register(meterRegistry))
+                .increment();
+    }
+
+    // 写入时设置的过期时间（加上抖动之后），秒，看过期时间是否足够分散
+    public void ttl(String keyPrefix, String kind, long millis) {
+        summaries.computeIfAbsent(keyPrefix + "|" + kind,
+                k -> DistributionSummary.builder("cache.ttl")
+                        .description("写入缓存时设置的过期时间")
+                        .baseUnit("seconds")
+                        .tag("prefix", keyPrefix)
+                        .tag("kind", kind)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry))
+                .record(millis / 1000.0);
+    }
+
+    // 压缩后的大小 / 原始大小，越小压缩效果越好
+    public void compression(String keyPrefix, int originalBytes, int compressedBytes) {
+        summaries.computeIfAbsent(keyPrefix + "|compression",
+                k -> DistributionSummary.builder("cache.compression.ratio")
+                        .description("缓存值压缩后的大小和原始大小的比值")
+                        .tag("prefix", keyPrefix)
+                        .register(meterRegistry))
+                .record((double) compressedBytes / originalBytes);
+        counters.computeIfAbsent("compression|" + keyPrefix,
+                k -> Counter.builder("cache.compression.saved.bytes")
+                        .description("压缩节省的字节数")
+                        .baseUnit("bytes")
+                        .tag("prefix", keyPrefix)
+                        .register(meterRegistry))
+                .increment(originalBytes - compressedBytes);
+    }
+
+    // 本地缓存、redis的命中率
+    public void registerStats(String keyPrefix, CacheStats cacheStats) {
+        Gauge.builder("cache.hit.ratio", cacheStats, CacheStats::getL1HitRatio)
+                .tag("prefix", keyPrefix).tag("tier", "l1").register(meterRegistry);
+        Gauge.builder("cache.hit.ratio", cacheStats, CacheStats::getL2HitRatio)
+                .tag("prefix", keyPrefix).tag("tier", "l2").register(meterRegistry);
+    }
+
+    public void registerGauge(String name, String description, Supplier<Number> value) {
+        Gauge.builder(name, value).description(description).register(meterRegistry);
+    }
+}
@@ -0,0 +1,185 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 逻辑过期的异步重建线程池
+// 1 有界：排队的任务超过queueCapacity直接拒绝，调用方继续返回旧数据，避免redis故障切换后大量key同时过期把数据库打垮
+// 2 去重：同一个key已经在排队或者正在重建，不会再提交，判断和登记在pending的一次compute中完成
+// 3 优先级：排队期间被重复请求的次数越多，说明key越热，越先重建
+// 4 应用关闭时先停止接收新任务，再等待已排队的任务执行完
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private final int queueCapacity;
+    private final long drainSeconds;
+    private final CacheMetrics cacheMetrics;
+
+    // 排队中和正在执行的任务，key是缓存的key
+    // 在pending的compute中只会进入queueLock，持有queueLock时不能再操作pending，否则会和compute互相等待
+    private final Map<String, RebuildTask> pending = new ConcurrentHashMap<>();
+    // 保护队列的优先级调整、容量判断和提交
+    private final Object queueLock = new Object();
+    // 关闭之后不再接收新任务
+    private volatile boolean accepting = true;
+
+    public CacheRebuildScheduler(CacheProperties cacheProperties, CacheMetrics cacheMetrics) {
+        CacheProperties.RebuildSpec spec = cacheProperties.getRebuild();
+        this.queueCapacity = spec.getQueueCapacity();
+        this.drainSeconds = spec.getDrainSeconds();
+        this.cacheMetrics = cacheMetrics;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(spec.getThreads(), spec.getThreads(), 0L, TimeUnit.MILLISECONDS, queue,
+                r -> new Thread(r, "cache-rebuild-" + threadIndex.incrementAndGet()));
+        // 线程没满时execute会直接把任务交给新线程，不经过队列，提前启动好线程，所有任务都按优先级排队
+        executor.prestartAllCoreThreads();
+        cacheMetrics.registerGauge("cache.rebuild.queue", "等待执行的缓存重建任务数", queue::size);
+        cacheMetrics.registerGauge("cache.rebuild.active", "正在执行的缓存重建任务数", executor::getActiveCount);
+    }
+
+    // 提交一个key的重建任务
+    // 返回true说明这个任务会执行；key已经在排队或者正在重建（会提高它的优先级）、队列已满被拒绝都返回false，
+    // 调用方直接返回旧数据即可，已经获取的租约要自己释放
+    public boolean submit(String keyPrefix, String key, Runnable task) {
+        return submit(keyPrefix, Collections.singletonList(key), task);
+    }
+
+    // 提交多个key一起重建的任务，已经在重建的key不再登记到这个任务，调用方可以先用touch过滤掉
+    // 返回值同上，所有key都已经在重建时返回false
+    public boolean submit(String keyPrefix, Collection<String> keys, Runnable task) {
+        if (!accepting) {
+            cacheMetrics.rebuildRejected(keyPrefix);
+            return false;
+        }
+        RebuildTask rebuildTask = new RebuildTask(keyPrefix, task);
+        // 1 逐个key登记，没有在重建的登记为这个任务，已经在重建的提高优先级
+        for (String key : keys) {
+            RebuildTask owner = pending.compute(key, (k, existing) -> {
+                if (null == existing) {
+                    return rebuildTask;
+                }
+                bump(existing);
+                return existing;
+            });
+            if (owner == rebuildTask) {
+                rebuildTask.keys.add(key);
+            }
+        }
+        if (rebuildTask.keys.isEmpty()) {
+            return false;
+        }
+        // 2 放入队列，队列满了或者已经关闭时撤销登记
+        boolean executed;
+        synchronized (queueLock) {
+            executed = accepting && queue.size() < queueCapacity && execute(rebuildTask);
+        }
+        if (!executed) {
+            for (String key : rebuildTask.keys) {
+                pending.remove(key, rebuildTask);
+            }
+            cacheMetrics.rebuildRejected(keyPrefix);
+            log.debug("缓存重建队列已满，prefix: {}, keys: {}", keyPrefix, rebuildTask.keys.size());
+        }
+        return executed;
+    }
+
+    private boolean execute(RebuildTask rebuildTask) {
+        try {
+            executor.execute(rebuildTask);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // 和shutdown并发时会走到这里
+            return false;
+        }
+    }
+
+    // key已经在排队或正在重建时返回true，并提高它的优先级
+    public boolean touch(String key) {
+        RebuildTask task = pending.get(key);
+        if (null == task) {
+            return false;
+        }
+        bump(task);
+        return true;
+    }
+
+    // 堆里的元素不能直接改优先级，取出来改完再放回去；已经开始执行的不在队列里，不用管
+    private void bump(RebuildTask task) {
+        synchronized (queueLock) {
+            if (queue.remove(task)) {
+                task.hits++;
+                queue.offer(task);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // 1 先停止接收新任务，拿到queueLock说明没有正在提交的任务
+        synchronized (queueLock) {
+            accepting = false;
+        }
+        // 2 已经排队的继续执行，超时的丢弃
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(drainSeconds, TimeUnit.SECONDS)) {
+                List<Runnable> dropped = executor.shutdownNow();
+                log.warn("缓存重建线程池关闭超时，丢弃{}个未执行的任务", dropped.size());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class RebuildTask implements Runnable, Comparable<RebuildTask> {
+        private final String keyPrefix;
+        // 登记到这个任务的key，提交之前写入，之后只读
+        private final List<String> keys = new ArrayList<>();
+        private final Runnable task;
+        // 排队期间被请求的次数，只在queueLock中修改
+        private volatile long hits = 1;
+
+        private RebuildTask(String keyPrefix, Runnable task) {
+            this.keyPrefix = keyPrefix;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (Exception e) {
+                cacheMetrics.rebuildFailure(keyPrefix);
+                log.error("缓存重建失败，prefix: {}, keys: {}", keyPrefix, keys, e);
+            } finally {
+                for (String key : keys) {
+                    pending.remove(key, this);
+                }
+            }
+        }
+
+        // 请求次数多的排在前面
+        @Override
+        public int compareTo(RebuildTask o) {
+            return Long.compare(o.hits, hits);
+        }
+    }
+}
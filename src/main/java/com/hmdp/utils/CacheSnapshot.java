@@ -0,0 +1,208 @@
+package com.hmdp.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 缓存快照文件，通过内存映射读写，重启后不用访问redis和数据库就能拿到上一次的数据
+// 格式：魔数(4) 格式版本(1) 生成时间(8)
+//      字符串表：个数(2) 每个字符串 长度(2) UTF-8，key前缀和类名只存一次
+//      条目数(4) 每个条目：前缀下标(2) 类名下标(2) key去掉前缀 长度(2) UTF-8 版本号(8) 值长度(4) 值
+// 值是BinaryCacheCodec编码的，读取时直接从映射的内存解码，不复制
+public class CacheSnapshot {
+
+    private static final int MAGIC = 0x484D5350;
+    private static final byte FORMAT_VERSION = 1;
+
+    private final long createdAt;
+    private final List<Record> records;
+    private final Map<String, Record> index;
+
+    private CacheSnapshot(long createdAt, List<Record> records) {
+        this.createdAt = createdAt;
+        this.records = records;
+        this.index = new HashMap<>(records.size() * 2);
+        for (Record record : records) {
+            index.put(record.getKey(), record);
+        }
+    }
+
+    // 生成快照的时间戳，毫秒
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public List<Record> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+
+    // 按完整的key查找，没有返回null
+    public Record get(String key) {
+        return index.get(key);
+    }
+
+    // 先写到临时文件，写完之后替换，读的一方不会看到写了一半的文件
+    public static void write(Path path, List<Entry> entries) throws IOException {
+        // 1 字符串表
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            strings.putIfAbsent(entry.prefix, strings.size());
+            strings.putIfAbsent(entry.type, strings.size());
+        }
+        if (strings.size() > 0xFFFF) {
+            throw new IllegalArgumentException("快照中的前缀和类型太多: " + strings.size());
+        }
+        // 2 计算文件大小
+        long size = 4 + 1 + 8 + 2 + 4;
+        for (String string : strings.keySet()) {
+            size += 2 + string.getBytes(StandardCharsets.UTF_8).length;
+        }
+        List<byte[]> suffixes = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            byte[] suffix = entry.key.substring(entry.prefix.length()).getBytes(StandardCharsets.UTF_8);
+            suffixes.add(suffix);
+            size += 2 + 2 + 2 + suffix.length + 8 + 4 + entry.value.length;
+        }
+
+        // 3 映射临时文件并写入
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC);
+            buffer.put(FORMAT_VERSION);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putShort((short) strings.size());
+            for (String string : strings.keySet()) {
+                putString(buffer, string.getBytes(StandardCharsets.UTF_8));
+            }
+            buffer.putInt(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                buffer.putShort(strings.get(entry.prefix).shortValue());
+                buffer.putShort(strings.get(entry.type).shortValue());
+                putString(buffer, suffixes.get(i));
+                buffer.putLong(entry.version);
+                buffer.putInt(entry.value.length);
+                buffer.put(entry.value);
+            }
+            buffer.force();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // 文件不存在或者格式不对返回null
+    // 只读取条目的位置，值留在映射的内存中，用到时再解码
+    public static CacheSnapshot open(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // 映射建立之后关闭channel不影响读取
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 4 + 1 + 8 || buffer.getInt() != MAGIC || buffer.get() != FORMAT_VERSION) {
+            return null;
+        }
+        long createdAt = buffer.getLong();
+        int stringCount = buffer.getShort() & 0xFFFF;
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = getString(buffer);
+        }
+        int count = buffer.getInt();
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String prefix = strings[buffer.getShort() & 0xFFFF];
+            String type = strings[buffer.getShort() & 0xFFFF];
+            String key = prefix + getString(buffer);
+            long version = buffer.getLong();
+            int length = buffer.getInt();
+            ByteBuffer value = buffer.slice();
+            value.limit(length);
+            buffer.position(buffer.position() + length);
+            records.add(new Record(prefix, key, type, version, value));
+        }
+        return new CacheSnapshot(createdAt, records);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 写入的一个条目，value是BinaryCacheCodec编码后的
+    public static class Entry {
+        private final String prefix;
+        private final String key;
+        private final String type;
+        private final long version;
+        private final byte[] value;
+
+        public Entry(String prefix, String key, String type, long version, byte[] value) {
+            this.prefix = prefix;
+            this.key = key;
+            this.type = type;
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    // 读出来的一个条目，值还在映射的内存中
+    public static class Record {
+        private final String prefix;
+        private final String key;
+        private final String type;
+        private final long version;
+        private final ByteBuffer value;
+
+        private Record(String prefix, String key, String type, long version, ByteBuffer value) {
+            this.prefix = prefix;
+            this.key = key;
+            this.type = type;
+            this.version = version;
+            this.value = value;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        // 每次返回独立的读取位置，多个线程可以同时解码
+        public ByteBuffer getValue() {
+            return value.duplicate();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// 本地缓存和店铺数据的快照，滚动发布重启之后不用从空的缓存开始
+// 1 本地缓存：定时和应用关闭时写入快照，连同每个key当时的版本号（见CacheClient的版本号）
+//   启动时直接放回本地缓存，再在后台一批一批MGET版本号核对，版本号变了的删掉
+// 2 店铺数据：CacheWarmUpRunner预热时写入，版本号也是缓存的版本号，下次预热时没变的店铺不用再从数据库读完整的数据
+// 快照放在本地磁盘，通过内存映射读写，格式见CacheSnapshot
+// 快照中的类名不可信，只解码TYPES中登记的前缀和类，其他的当作无法解码
+// 恢复的本地缓存和正常写入的一样只有本地缓存的有效期（hmdp.cache.local的ttl-seconds，几秒），
+// 只是挡住重启后最初几秒的请求；主要的收益是店铺快照，预热时不用再从数据库读完整的数据
+@Slf4j
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class CacheSnapshotManager implements ApplicationRunner {
+
+    private static final String LOCAL_FILE = "local.snapshot";
+    private static final String CATALOG_FILE = "shop-catalog.snapshot";
+
+    // 快照允许恢复的类型，key前缀 -> 缓存的实体类，新的前缀要用快照时在这里登记
+    private static final Map<String, Class<?>> TYPES = new HashMap<>();
+    static {
+        TYPES.put(RedisConstants.CACHE_SHOP_KEY, Shop.class);
+    }
+
+    private final CacheClient cacheClient;
+    private final CacheProperties.SnapshotSpec spec;
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    public CacheSnapshotManager(CacheClient cacheClient, CacheProperties cacheProperties) {
+        this.cacheClient = cacheClient;
+        this.spec = cacheProperties.getSnapshot();
+    }
+
+    // 在其他ApplicationRunner（预热）之前恢复本地缓存
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!spec.isEnabled()) {
+            return;
+        }
+        CacheSnapshot snapshot = open(LOCAL_FILE);
+        if (null == snapshot) {
+            return;
+        }
+        // 1 直接放回本地缓存，马上就能命中
+        List<CacheSnapshot.Record> restored = new ArrayList<>(snapshot.getRecords().size());
+        for (CacheSnapshot.Record record : snapshot.getRecords()) {
+            Object value = decode(record);
+            if (null != value) {
+                cacheClient.restoreLocal(record.getPrefix(), record.getKey(), value);
+                restored.add(record);
+            }
+        }
+        log.info("从快照恢复本地缓存{}个，快照生成于{}秒前", restored.size(),
+                TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - snapshot.getCreatedAt()));
+        // 2 后台核对版本号
+        Thread thread = new Thread(() -> reconcile(restored), "cache-snapshot-reconcile");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 快照之后被删除过的key版本号会变，从本地缓存中删掉；redis不可用时全部删掉，宁可多查一次
+    private void reconcile(List<CacheSnapshot.Record> restored) {
+        int evicted = 0;
+        for (int i = 0; i < restored.size(); i += spec.getReconcileBatchSize()) {
+            List<CacheSnapshot.Record> batch = restored.subList(i, Math.min(restored.size(), i + spec.getReconcileBatchSize()));
+            List<String> keys = new ArrayList<>(batch.size());
+            for (CacheSnapshot.Record record : batch) {
+                keys.add(record.getKey());
+            }
+            Map<String, String> versions;
+            try {
+                versions = cacheClient.readVersions(keys);
+            } catch (Exception e) {
+                log.warn("核对本地缓存快照的版本号失败", e);
+                versions = new HashMap<>();
+            }
+            for (CacheSnapshot.Record record : batch) {
+                if (!String.valueOf(record.getVersion()).equals(versions.get(record.getKey()))) {
+                    cacheClient.evictLocal(record.getKey());
+                    evicted++;
+                }
+            }
+        }
+        log.info("本地缓存快照核对完成，共{}个，版本号变化删除{}个", restored.size(), evicted);
+    }
+
+    // 定时写入本地缓存的快照
+    @Scheduled(fixedDelayString = "#{@cacheProperties.snapshot.intervalSeconds * 1000}",
+            initialDelayString = "#{@cacheProperties.snapshot.intervalSeconds * 1000}")
+    public void checkpoint() {
+        if (!spec.isEnabled()) {
+            return;
+        }
+        // 1 先取出所有key读取版本号，再取一次值，只保存两次都在的
+        // 读取版本号之后被删除的key，快照中的版本号是旧的，恢复后核对时会被删掉
+        Map<String, Map<String, Object>> before = cacheClient.localEntries();
+        List<String> keys = new ArrayList<>();
+        before.values().forEach(entries -> keys.addAll(entries.keySet()));
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<String, String> versions = cacheClient.readVersions(keys);
+        List<CacheSnapshot.Entry> entries = new ArrayList<>(keys.size());
+        for (Map.Entry<String, Map<String, Object>> segment : cacheClient.localEntries().entrySet()) {
+            Map<String, Object> previous = before.getOrDefault(segment.getKey(), new HashMap<>());
+            for (Map.Entry<String, Object> entry : segment.getValue().entrySet()) {
+                if (previous.containsKey(entry.getKey())) {
+                    entries.add(entryOf(segment.getKey(), entry.getKey(), entry.getValue(),
+                            Long.parseLong(versions.get(entry.getKey()))));
+                }
+            }
+        }
+        write(LOCAL_FILE, entries);
+    }
+
+    // 应用关闭时再写一次，重启后拿到的是最新的
+    @PreDestroy
+    public void shutdown() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            log.warn("应用关闭时写入本地缓存快照失败", e);
+        }
+    }
+
+    // 上一次预热写入的店铺快照，不存在、太旧或者没开启返回null
+    public CacheSnapshot openCatalog() {
+        return spec.isEnabled() ? open(CATALOG_FILE) : null;
+    }
+
+    public void writeCatalog(List<CacheSnapshot.Entry> entries) {
+        if (spec.isEnabled()) {
+            write(CATALOG_FILE, entries);
+        }
+    }
+
+    // 快照中的值按BinaryCacheCodec编码，不管redis中这个前缀用的是什么编码
+    public CacheSnapshot.Entry entryOf(String keyPrefix, String key, Object value, long version) {
+        return new CacheSnapshot.Entry(keyPrefix, key, value.getClass().getName(), version, codec.encode(value));
+    }
+
+    // 前缀没有登记、类型和登记的不一样、字段变了返回null
+    @SuppressWarnings("unchecked")
+    public <T> T decode(CacheSnapshot.Record record) {
+        Class<?> type = TYPES.get(record.getPrefix());
+        if (null == type || !type.getName().equals(record.getType())) {
+            log.debug("快照中的类型不允许恢复，key: {}，类型: {}", record.getKey(), record.getType());
+            return null;
+        }
+        try {
+            return (T) codec.decode(record.getValue(), type);
+        } catch (RuntimeException e) {
+            log.debug("快照中的数据无法解码，key: {}", record.getKey(), e);
+            return null;
+        }
+    }
+
+    private CacheSnapshot open(String fileName) {
+        Path path = Paths.get(spec.getDir(), fileName);
+        try {
+            CacheSnapshot snapshot = CacheSnapshot.open(path);
+            if (null == snapshot) {
+                return null;
+            }
+            if (System.currentTimeMillis() - snapshot.getCreatedAt() > TimeUnit.SECONDS.toMillis(spec.getMaxAgeSeconds())) {
+                log.info("快照已经过期，不再加载: {}", path);
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | RuntimeException e) {
+            log.warn("读取快照失败: {}", path, e);
+            return null;
+        }
+    }
+
+    private void write(String fileName, List<CacheSnapshot.Entry> entries) {
+        Path path = Paths.get(spec.getDir(), fileName);
+        long begin = System.currentTimeMillis();
+        try {
+            CacheSnapshot.write(path, entries);
+            log.debug("写入快照{}，共{}个，耗时{}ms", path, entries.size(), System.currentTimeMillis() - begin);
+        } catch (IOException e) {
+            log.warn("写入快照失败: {}", path, e);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// 某个key前缀的缓存命中统计，l1是本地缓存，l2是redis
+public class CacheStats {
+    private final LongAdder l1Hits = new LongAdder();
+    private final LongAdder l1Misses = new LongAdder();
+    private final LongAdder l2Hits = new LongAdder();
+    private final LongAdder l2Misses = new LongAdder();
+    private final LongAdder bloomRejects = new LongAdder();
+
+    public void recordL1(boolean hit) {
+        (hit ? l1Hits : l1Misses).increment();
+    }
+
+    public void recordL2(boolean hit) {
+        (hit ? l2Hits : l2Misses).increment();
+    }
+
+    // 布隆过滤器判断不存在，直接拦截的次数
+    public void recordBloomReject() {
+        bloomRejects.increment();
+    }
+
+    public long getL1Hits() {
+        return l1Hits.sum();
+    }
+
+    public long getL1Misses() {
+        return l1Misses.sum();
+    }
+
+    public long getL2Hits() {
+        return l2Hits.sum();
+    }
+
+    public long getL2Misses() {
+        return l2Misses.sum();
+    }
+
+    public long getBloomRejects() {
+        return bloomRejects.sum();
+    }
+
+    public double getL1HitRatio() {
+        return ratio(l1Hits.sum(), l1Misses.sum());
+    }
+
+    public double getL2HitRatio() {
+        return ratio(l2Hits.sum(), l2Misses.sum());
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+// @HmdpCacheable可选的缓存策略，name和application.yaml、CacheMetrics中的strategy一致
+public enum CacheStrategy {
+    // 缓存穿透方案，写入空值
+    PASS_THROUGH(CacheMetrics.STRATEGY_PASS_THROUGH),
+    // 互斥锁解决缓存击穿
+    MUTEX(CacheMetrics.STRATEGY_MUTEX),
+    // 逻辑过期解决缓存击穿
+    LOGICAL_EXPIRE(CacheMetrics.STRATEGY_LOGICAL_EXPIRE),
+    // 软过期返回旧数据后台刷新，硬过期同步查询
+    STALE_WHILE_REVALIDATE(CacheMetrics.STRATEGY_STALE_WHILE_REVALIDATE),
+    // 本地缓存 + redis，redis部分和PASS_THROUGH一样
+    LOCAL_REMOTE("local_remote");
+
+    private final String value;
+
+    CacheStrategy(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    // 按配置中的名字查找，pass_through、PASS_THROUGH都可以
+    public static CacheStrategy of(String value) {
+        for (CacheStrategy strategy : values()) {
+            if (strategy.value.equalsIgnoreCase(value) || strategy.name().equalsIgnoreCase(value)) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("未知的缓存策略: " + value);
+    }
+}
@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 每个key前缀使用的缓存策略，启动时从application.yaml的hmdp.cache.prefixes读取，运行时可以切换，不需要重新部署
+// 切换过的策略保存在redis（CACHE_STRATEGY_KEY）中，优先于配置文件，通过CACHE_STRATEGY_CHANNEL通知所有实例，
+// 新启动的实例也会读取，所有实例使用同一个策略
+// 只有配置过或者切换过的前缀在这里，其他前缀使用@HmdpCacheable上的默认策略
+@Slf4j
+@Component
+public class CacheStrategyRegistry {
+
+    private final Map<String, CacheStrategy> strategies = new ConcurrentHashMap<>();
+
+    private final CacheClient cacheClient;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public CacheStrategyRegistry(CacheProperties cacheProperties, CacheClient cacheClient, StringRedisTemplate stringRedisTemplate) {
+        this.cacheClient = cacheClient;
+        this.stringRedisTemplate = stringRedisTemplate;
+        for (CacheProperties.PrefixSpec spec : cacheProperties.getPrefixes()) {
+            if (null != spec.getStrategy()) {
+                strategies.put(spec.getPrefix(), CacheStrategy.of(spec.getStrategy()));
+            }
+        }
+        loadSwitched();
+    }
+
+    // 读取其他实例切换过的策略，redis不可用时先用配置文件中的，切换时会再收到通知
+    private void loadSwitched() {
+        try {
+            Map<Object, Object> switched = stringRedisTemplate.opsForHash().entries(RedisConstants.CACHE_STRATEGY_KEY);
+            switched.forEach((prefix, strategy) -> apply(String.valueOf(prefix), CacheStrategy.of(String.valueOf(strategy))));
+        } catch (RuntimeException e) {
+            log.warn("读取切换过的缓存策略失败，先使用配置文件中的策略", e);
+        }
+    }
+
+    public CacheStrategy get(String keyPrefix, CacheStrategy defaultStrategy) {
+        return strategies.getOrDefault(keyPrefix, defaultStrategy);
+    }
+
+    // 切换一个前缀的缓存策略，先写入redis再通知所有实例，各实例下一次查询开始生效
+    public void switchStrategy(String keyPrefix, CacheStrategy strategy) {
+        stringRedisTemplate.opsForHash().put(RedisConstants.CACHE_STRATEGY_KEY, keyPrefix, strategy.getValue());
+        // 本实例直接生效，其他实例在CacheInvalidationConfig中订阅这个频道
+        apply(keyPrefix, strategy);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_STRATEGY_CHANNEL, keyPrefix);
+    }
+
+    // 收到切换通知，从redis读取这个前缀最新的策略，通知乱序到达也不会用到旧的策略
+    public void onSwitched(String keyPrefix) {
+        Object strategy = stringRedisTemplate.opsForHash().get(RedisConstants.CACHE_STRATEGY_KEY, keyPrefix);
+        if (null != strategy) {
+            apply(keyPrefix, CacheStrategy.of(String.valueOf(strategy)));
+        }
+    }
+
+    private void apply(String keyPrefix, CacheStrategy strategy) {
+        CacheStrategy old = strategies.put(keyPrefix, strategy);
+        if (old == strategy) {
+            return;
+        }
+        // 不再使用本地缓存时，关掉运行时开启的本地缓存
+        if (CacheStrategy.LOCAL_REMOTE == old) {
+            cacheClient.disableLocal(keyPrefix);
+        }
+        log.info("缓存策略切换，prefix: {}, {} -> {}", keyPrefix, old, strategy);
+    }
+
+    // key前缀 -> 策略
+    public Map<String, String> getAll() {
+        Map<String, String> result = new TreeMap<>();
+        strategies.forEach((prefix, strategy) -> result.put(prefix, strategy.getValue()));
+        return result;
+    }
+}
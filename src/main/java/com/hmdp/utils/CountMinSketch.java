@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// count-min sketch，用固定大小的内存估计每个key的访问次数
+// 估计值只会偏大不会偏小，depth行每行一个hash，取各行计数的最小值
+public class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final AtomicIntegerArray counters;
+
+    // width会向上取整为2的幂
+    public CountMinSketch(int depth, int width) {
+        this.depth = Math.max(1, depth);
+        this.width = roundWidth(width);
+        this.counters = new AtomicIntegerArray(this.depth * this.width);
+    }
+
+    // 不小于width的2的幂，最小16，本身是2的幂的不变
+    static int roundWidth(int width) {
+        return width <= 16 ? 16 : Integer.highestOneBit(width - 1) << 1;
+    }
+
+    // 计数加一，返回加完之后的估计值
+    public int add(String key) {
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters.incrementAndGet(index(h1, h2, i)));
+        }
+        return min;
+    }
+
+    public int estimate(String key) {
+        long hash = MurmurHash.hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters.get(index(h1, h2, i)));
+        }
+        return min;
+    }
+
+    // 所有计数减半，旧的访问逐渐被遗忘
+    public void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.getAndUpdate(i, v -> v >>> 1);
+        }
+    }
+
+    // 第i行的位置：(h1 + i*h2) & (width-1)
+    private int index(int h1, int h2, int i) {
+        return i * width + ((h1 + i * h2) & (width - 1));
+    }
+}
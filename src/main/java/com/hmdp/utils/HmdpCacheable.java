@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+// 方法的结果通过CacheClient缓存，方法本身就是查询数据库的逻辑
+// 方法的第一个参数是id，key为prefix + id，返回值类型就是缓存的类型
+// 实际使用的策略先看CacheStrategyRegistry（application.yaml中配置，运行时可以切换），没有配置的用strategy
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface HmdpCacheable {
+
+    // key前缀
+    String prefix();
+
+    // 过期时间，逻辑过期时是逻辑过期时间，stale-while-revalidate时是硬过期时间
+    long ttl() default 30;
+
+    // stale-while-revalidate的软过期时间，0表示ttl的一半
+    long softTtl() default 0;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    // 逻辑过期的提前重建系数，0表示不提前重建
+    double beta() default 0;
+
+    // 默认的缓存策略
+    CacheStrategy strategy() default CacheStrategy.PASS_THROUGH;
+}
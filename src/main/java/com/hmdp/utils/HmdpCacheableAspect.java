@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.function.Function;
+
+// 把@HmdpCacheable的方法交给CacheClient，按CacheStrategyRegistry中当前的策略查询缓存
+@Slf4j
+@Aspect
+@Component
+public class HmdpCacheableAspect {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheStrategyRegistry cacheStrategyRegistry;
+
+    @Around("@annotation(cacheable)")
+    @SuppressWarnings("unchecked")
+    public Object around(ProceedingJoinPoint joinPoint, HmdpCacheable cacheable) {
+        Object[] args = joinPoint.getArgs();
+        if (args.length == 0 || null == args[0]) {
+            return proceed(joinPoint, args);
+        }
+        Object id = args[0];
+        Class<Object> type = (Class<Object>) ((MethodSignature) joinPoint.getSignature()).getReturnType();
+        String prefix = cacheable.prefix();
+        // 缓存未命中时执行原来的方法查询数据库，第一个参数换成要查询的id
+        Function<Object, Object> dbFallback = key -> {
+            Object[] newArgs = args.clone();
+            newArgs[0] = key;
+            return proceed(joinPoint, newArgs);
+        };
+
+        CacheStrategy strategy = cacheStrategyRegistry.get(prefix, cacheable.strategy());
+        switch (strategy) {
+            case MUTEX:
+                return cacheClient.queryWithMutex(prefix, id, type, dbFallback, cacheable.ttl(), cacheable.unit());
+            case LOGICAL_EXPIRE:
+                // 逻辑过期要求提前预热，刚切换过来时redis中还没有，加载一次写入
+                // 加载和重建一样合并请求、加互斥锁、按版本号写入，不会让切换策略后的第一波请求都去查数据库
+                return cacheClient.queryWithLogicalExpireOrLoad(prefix, id, type, dbFallback, cacheable.ttl(), cacheable.unit(), cacheable.beta());
+            case STALE_WHILE_REVALIDATE:
+                long softTtl = cacheable.softTtl() > 0 ? cacheable.softTtl() : cacheable.ttl() / 2;
+                return cacheClient.queryWithStaleWhileRevalidate(prefix, id, type, dbFallback, softTtl, cacheable.ttl(), cacheable.unit());
+            case LOCAL_REMOTE:
+                cacheClient.enableLocal(prefix);
+                return cacheClient.queryWithPassThrough(prefix, id, type, dbFallback, cacheable.ttl(), cacheable.unit());
+            case PASS_THROUGH:
+            default:
+                return cacheClient.queryWithPassThrough(prefix, id, type, dbFallback, cacheable.ttl(), cacheable.unit());
+        }
+    }
+
+    private Object proceed(ProceedingJoinPoint joinPoint, Object[] args) {
+        try {
+            return joinPoint.proceed(args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
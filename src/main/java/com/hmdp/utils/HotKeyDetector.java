@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// 热点key探测，CacheClient每次读取都记录一次访问
+// 用count-min sketch估计访问次数，每个窗口所有计数减半，超过阈值的key升级为热点key放入本地缓存
+// 减半之后低于阈值一半的热点key降级，阈值和降级线之间留一段，避免在阈值附近反复升降
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private final CacheProperties.HotKeySpec spec;
+    private final CountMinSketch sketch;
+
+    // 当前的热点key，value是升级时或者上一次衰减后的估计访问次数
+    private final Map<String, Integer> hotKeys = new ConcurrentHashMap<>();
+
+    // 热点key降级时的回调，CacheClient用来删除本地缓存
+    private volatile Consumer<String> demoteListener = key -> { };
+
+    public HotKeyDetector(CacheProperties cacheProperties, CacheMetrics cacheMetrics) {
+        this.spec = cacheProperties.getHotKey();
+        this.sketch = new CountMinSketch(spec.getSketchDepth(), spec.getSketchWidth());
+        cacheMetrics.registerGauge("cache.hot.keys", "当前的热点key数量", hotKeys::size);
+    }
+
+    public void setDemoteListener(Consumer<String> demoteListener) {
+        this.demoteListener = demoteListener;
+    }
+
+    // 记录一次访问，返回这个key现在是不是热点key
+    public boolean record(String key) {
+        if (!spec.isEnabled()) {
+            return false;
+        }
+        if (hotKeys.containsKey(key)) {
+            sketch.add(key);
+            return true;
+        }
+        int count = sketch.add(key);
+        if (count < spec.getThreshold() || hotKeys.size() >= spec.getMaxHotKeys()) {
+            return false;
+        }
+        if (null == hotKeys.putIfAbsent(key, count)) {
+            log.info("发现热点key: {}, 访问次数: {}", key, count);
+        }
+        return true;
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    // 当前的热点key和估计的访问次数，按访问次数从大到小
+    public Map<String, Integer> getHotKeys() {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        for (String key : hotKeys.keySet()) {
+            entries.add(new AbstractMap.SimpleEntry<>(key, sketch.estimate(key)));
+        }
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    // 每个窗口衰减一次，冷却下来的key降级
+    @Scheduled(fixedDelayString = "#{@cacheProperties.hotKey.windowSeconds * 1000}")
+    public void decay() {
+        if (!spec.isEnabled()) {
+            return;
+        }
+        sketch.decay();
+        for (String key : hotKeys.keySet()) {
+            int count = sketch.estimate(key);
+            if (count < spec.getThreshold() / 2) {
+                hotKeys.remove(key);
+                demoteListener.accept(key);
+                log.info("热点key降级: {}, 访问次数: {}", key, count);
+            } else {
+                hotKeys.put(key, count);
+            }
+        }
+    }
+}
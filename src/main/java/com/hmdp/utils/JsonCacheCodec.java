@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+// 原来的JSON格式，使用hutool
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        // 切换过缓存策略时，redis中可能还是逻辑过期格式的数据，当作未命中
+        if (json.containsKey("expireTime") && json.containsKey("data")) {
+            return null;
+        }
+        return JSONUtil.toBean(json, type);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData<?> redisData) {
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type) {
+        // 只解析一次JSON，再把data转成目标类型，不再先转成RedisData
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        redisData.setBuildMillis(json.getLong("buildMillis"));
+        JSONObject data = json.getJSONObject("data");
+        redisData.setData(null == data ? null : JSONUtil.toBean(data, type));
+        return redisData;
+    }
+}
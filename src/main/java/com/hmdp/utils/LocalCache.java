@@ -0,0 +1,191 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 进程内的一级缓存，放在redis前面，热点key不用每次都走网络
+// 每个key前缀一个分段，分段内部是有界的近似LRU（读不加锁，见Segment），并且每个entry有自己的过期时间
+public class LocalCache {
+
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    public LocalCache(List<CacheProperties.LocalSpec> specs) {
+        for (CacheProperties.LocalSpec spec : specs) {
+            addSegment(spec);
+        }
+    }
+
+    public void addSegment(CacheProperties.LocalSpec spec) {
+        segments.put(spec.getPrefix(), new Segment(spec.getMaxSize(), spec.getTtlSeconds() * 1000));
+    }
+
+    // 已经有这个前缀的分段时保留原来的
+    public void addSegmentIfAbsent(CacheProperties.LocalSpec spec) {
+        segments.computeIfAbsent(spec.getPrefix(), k -> new Segment(spec.getMaxSize(), spec.getTtlSeconds() * 1000));
+    }
+
+    public void removeSegment(String keyPrefix) {
+        segments.remove(keyPrefix);
+    }
+
+    public boolean isEnabled(String keyPrefix) {
+        return segments.containsKey(keyPrefix);
+    }
+
+    // 本地缓存的有效期，毫秒，没有配置返回0
+    public long ttlMillis(String keyPrefix) {
+        Segment segment = segments.get(keyPrefix);
+        return null == segment ? 0 : segment.ttlMillis;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <R> R get(String keyPrefix, String key) {
+        Segment segment = segments.get(keyPrefix);
+        if (null == segment) {
+            return null;
+        }
+        return (R) segment.get(key);
+    }
+
+    // expireAt为绝对时间戳，毫秒，不会超过本分段配置的ttl
+    public void put(String keyPrefix, String key, Object value, long expireAt) {
+        Segment segment = segments.get(keyPrefix);
+        if (null == segment || null == value) {
+            return;
+        }
+        segment.put(key, value, Math.min(expireAt, System.currentTimeMillis() + segment.ttlMillis));
+    }
+
+    public void put(String keyPrefix, String key, Object value) {
+        put(keyPrefix, key, value, Long.MAX_VALUE);
+    }
+
+    // 只知道完整的key，按前缀找到分段再删除
+    public void evict(String key) {
+        for (Map.Entry<String, Segment> entry : segments.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().remove(key);
+            }
+        }
+    }
+
+    public Set<String> prefixes() {
+        return new HashSet<>(segments.keySet());
+    }
+
+    // 一个分段中还没过期的数据，key -> 值
+    public Map<String, Object> entries(String keyPrefix) {
+        Segment segment = segments.get(keyPrefix);
+        return null == segment ? Collections.emptyMap() : segment.entries();
+    }
+
+    public int size(String keyPrefix) {
+        Segment segment = segments.get(keyPrefix);
+        return null == segment ? 0 : segment.size();
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expireAt;
+        // 最近一次访问的时间，纳秒，淘汰时按它排序
+        private volatile long accessedAt;
+
+        private Entry(Object value, long expireAt, long accessedAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.accessedAt = accessedAt;
+        }
+    }
+
+    // 读不加锁：ConcurrentHashMap读取，再更新一下访问时间
+    // 超过容量时由一个线程批量淘汰：按访问时间排序，删掉最久没访问的，一次删到容量的90%，排序的开销分摊到之后的写入上
+    // 淘汰期间其他线程照常读写，容量会短暂超过一点
+    static class Segment {
+        // 访问时间相差不到这么多不更新，热点key不会每次读都写同一个字段
+        private static final long ACCESS_RESOLUTION_NANOS = 1_000_000;
+
+        private final int maxSize;
+        private final long ttlMillis;
+        private final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<>();
+        private final ReentrantLock evictLock = new ReentrantLock();
+
+        Segment(int maxSize, long ttlMillis) {
+            this.maxSize = maxSize;
+            this.ttlMillis = ttlMillis;
+        }
+
+        Object get(String key) {
+            Entry entry = map.get(key);
+            if (null == entry) {
+                return null;
+            }
+            if (entry.expireAt <= System.currentTimeMillis()) {
+                // 过期了，惰性删除，只删这个entry，期间被重新写入的不删
+                map.remove(key, entry);
+                return null;
+            }
+            long now = System.nanoTime();
+            if (now - entry.accessedAt > ACCESS_RESOLUTION_NANOS) {
+                entry.accessedAt = now;
+            }
+            return entry.value;
+        }
+
+        void put(String key, Object value, long expireAt) {
+            map.put(key, new Entry(value, expireAt, System.nanoTime()));
+            if (map.size() > maxSize && evictLock.tryLock()) {
+                try {
+                    evict();
+                } finally {
+                    evictLock.unlock();
+                }
+            }
+        }
+
+        void remove(String key) {
+            map.remove(key);
+        }
+
+        Map<String, Object> entries() {
+            long now = System.currentTimeMillis();
+            Map<String, Object> entries = new HashMap<>(map.size());
+            for (Map.Entry<String, Entry> entry : map.entrySet()) {
+                if (entry.getValue().expireAt > now) {
+                    entries.put(entry.getKey(), entry.getValue().value);
+                }
+            }
+            return entries;
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        private void evict() {
+            // 1 先删过期的
+            long now = System.currentTimeMillis();
+            map.entrySet().removeIf(entry -> entry.getValue().expireAt <= now);
+            if (map.size() <= maxSize) {
+                return;
+            }
+            // 2 还是超过容量，按访问时间删掉最久没访问的
+            List<Map.Entry<String, Entry>> entries = new ArrayList<>(map.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().accessedAt));
+            int target = maxSize - maxSize / 10;
+            for (int i = 0; i < entries.size() - target; i++) {
+                Map.Entry<String, Entry> entry = entries.get(i);
+                map.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
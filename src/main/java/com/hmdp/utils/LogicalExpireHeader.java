@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// 逻辑过期数据的头部，加在编码（和压缩）之后的数据前面
+// lua脚本不需要解码就能判断是否过期，见cache_logical_get.lua
+// 格式：1字节MAGIC + 8字节逻辑过期时间（毫秒时间戳）+ 8字节上一次重建耗时（毫秒，没有为0）+ 数据
+// 没有头部的旧数据依然可以读，只是过期判断留在java中
+public final class LogicalExpireHeader {
+
+    // 和json、二进制（0xB1）、压缩（0xC7）的第一个字节都不冲突
+    public static final byte MAGIC = (byte) 0xE7;
+    private static final int LENGTH = 17;
+
+    private LogicalExpireHeader() {
+    }
+
+    public static boolean hasHeader(byte[] bytes) {
+        return null != bytes && bytes.length > LENGTH && bytes[0] == MAGIC;
+    }
+
+    public static byte[] wrap(byte[] payload, long expireAt, long buildMillis) {
+        return ByteBuffer.allocate(LENGTH + payload.length)
+                .put(MAGIC)
+                .putLong(expireAt)
+                .putLong(Math.max(0, buildMillis))
+                .put(payload)
+                .array();
+    }
+
+    // 去掉头部，没有头部的原样返回
+    public static byte[] unwrap(byte[] bytes) {
+        return hasHeader(bytes) ? Arrays.copyOfRange(bytes, LENGTH, bytes.length) : bytes;
+    }
+}
@@ -8,13 +8,52 @@ public class RedisConstants {
 
     public static final Long CACHE_NULL_TTL = 2L;
 
-    public static final Long CACHE_SHOP_TTL = 30L;
+    // 基本类型的常量，@HmdpCacheable的ttl可以直接引用
+    public static final long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "jcwang-common:cache:shop:";
+    // 店铺以hash存储的缓存，每个属性一个字段，可以只读部分字段
+    public static final String CACHE_SHOP_HASH_KEY = "jcwang-common:cache:shop-hash:";
+    // 店铺逻辑过期的提前重建系数，越大越早重建
+    public static final double CACHE_SHOP_XFETCH_BETA = 1.0;
+    // 店铺stale-while-revalidate的软过期时间，分钟，硬过期使用CACHE_SHOP_TTL
+    public static final Long CACHE_SHOP_SOFT_TTL = 5L;
+    // 缓存的版本号，key为 前缀 + {缓存key}，和缓存key在集群的同一个槽，删除缓存时加一，重建时比较版本号再写入，不设置有效期
+    public static final String CACHE_VERSION_KEY = "jcwang-common:cache:version:";
+
+    // 缓存失效通知的pub/sub频道，消息内容是被删除的key
+    public static final String CACHE_INVALIDATE_CHANNEL = "jcwang-common:cache:invalidate";
+    // 布隆过滤器新增id的pub/sub频道，消息内容是 key前缀+id
+    public static final String CACHE_BLOOM_CHANNEL = "jcwang-common:cache:bloom";
+    // 运行时切换过的缓存策略，hash，字段是key前缀，值是策略，新启动的实例也按它来
+    public static final String CACHE_STRATEGY_KEY = "jcwang-common:cache:strategy";
+    // 缓存策略切换的pub/sub频道，消息内容是key前缀
+    public static final String CACHE_STRATEGY_CHANNEL = "jcwang-common:cache:strategy:switch";
 
     public static final String LOCK_SHOP_KEY = "jcwang-common:lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    // CacheClient重建缓存的互斥锁和租约，key为 前缀 + {缓存key}，和缓存key在集群的同一个槽，不同key前缀的锁互不影响
+    public static final String LOCK_CACHE_KEY = "jcwang-common:lock:cache:";
 
     public static final String SECKILL_STOCK_KEY = "jcwang-common:seckill:stock:";
+    // 秒杀的订单key，保存下过单的用户id，seckill.lua中写入
+    public static final String SECKILL_ORDER_KEY = "jcwang-common:seckill:order:";
+    // 分段库存的分段数，没有这个key的优惠券只有一个库存key（SECKILL_STOCK_KEY + 优惠券id）
+    // 分段的库存key和订单key是 SECKILL_STOCK_KEY/SECKILL_ORDER_KEY + {优惠券id:分段}，同一个分段的两个key在集群的同一个槽
+    // 订单stream不在分段的槽中，分段的脚本只操作分段的key，订单消息由SeckillStockBuckets在脚本之后发送
+    public static final String SECKILL_STOCK_BUCKETS_KEY = "jcwang-common:seckill:buckets:";
+    // 用户所属分段没有库存、去其他分段扣库存期间，预占一人一单的资格，key为 前缀 + {优惠券id:分段}:用户id
+    public static final String SECKILL_RESERVE_KEY = "jcwang-common:seckill:reserve:";
+    // 预占的有效期，秒，中途挂了的请求过期之后用户可以重新下单
+    public static final Long SECKILL_RESERVE_TTL = 10L;
+    // 秒杀订单的stream和消费者组，按用户id分区，seckill.lua写入 stream.orders:{分区}
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    // 多次处理失败的秒杀订单，字段和原消息一样，另外记录来源stream、原消息id和投递次数
+    public static final String SECKILL_ORDER_DEAD_LETTER_STREAM = "stream.orders.dlq";
+    // 秒杀订单分区的租约，value是拥有这个分区的消费者名字
+    public static final String SECKILL_PARTITION_LOCK_KEY = "jcwang-common:lock:seckill:partition:";
+    // 所有实例的秒杀订单消费者，zset，score是最近一次心跳的时间
+    public static final String SECKILL_CONSUMERS_KEY = "jcwang-common:seckill:consumers";
     public static final String BLOG_LIKED_KEY = "jcwang-common:blog:liked:";
     public static final String FEED_KEY = "jcwang-common:feed:";
     public static final String SHOP_GEO_KEY = "jcwang-common:shop:geo:";
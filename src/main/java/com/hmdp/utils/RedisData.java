@@ -5,7 +5,8 @@ import lombok.Data;
 import java.time.LocalDateTime;
 
 @Data
-public class RedisData {
+public class RedisData<T> {
     private LocalDateTime expireTime;
-    private Object data; // 万能的存储数据的类型
+    private T data; // 万能的存储数据的类型，泛型，解码时直接解码成目标类型
+    private Long buildMillis; // 上一次重建的耗时，用于概率提前重建（XFetch），可以为空
 }
@@ -0,0 +1,452 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 秒杀订单的消费者池
+// 1 分区：seckill.lua按 userId % partitions 写入 stream.orders:{分区}，同一个用户的订单在同一个分区
+// 2 一个分区同一时间只属于一个消费者（redis中的分区租约），同一个用户的订单串行处理
+// 3 所有实例的消费者登记在一个zset中，每个消费者最多拥有 ceil(分区数 / 消费者数) 个分区，多的释放，少的去抢没人拥有的
+// 4 每个实例的消费者数量在min和max之间，按积压的消息数（XINFO GROUPS + XPENDING）增减
+// 消费者名字是 主机名:端口-序号，每个实例、每个线程都不一样
+@Slf4j
+@Component
+public class SeckillOrderConsumerPool {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Value("${server.port}")
+    private int port;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("seckill_partition_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final List<Worker> workers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger workerIndex = new AtomicInteger();
+    // 线程会被复用，线程名在Worker.run中改成消费者的序号
+    private final ExecutorService executor = Executors.newCachedThreadPool(
+            r -> new Thread(r, "seckill-order-consumer"));
+    private volatile boolean shutdown;
+    private String consumerPrefix;
+
+    // 用户的订单写入哪个分区
+    public static String streamOf(Long userId, int partitions) {
+        return partitionKey((int) Math.floorMod(userId, (long) partitions));
+    }
+
+    static String partitionKey(int partition) {
+        return RedisConstants.SECKILL_ORDER_STREAM + ":" + partition;
+    }
+
+    // stream.orders:{分区} -> 分区，不是分区stream的返回null
+    static Integer partitionOf(String stream) {
+        String prefix = RedisConstants.SECKILL_ORDER_STREAM + ":";
+        if (null == stream || !stream.startsWith(prefix)) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(stream.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // StreamOffset是泛型类，不能直接创建泛型数组，未检查的转换只在这里
+    @SuppressWarnings("unchecked")
+    static StreamOffset<String>[] streamOffsets(Map<String, ReadOffset> readOffsets) {
+        List<StreamOffset<String>> offsets = new ArrayList<>(readOffsets.size());
+        for (Map.Entry<String, ReadOffset> entry : readOffsets.entrySet()) {
+            offsets.add(StreamOffset.create(entry.getKey(), entry.getValue()));
+        }
+        return offsets.toArray(new StreamOffset[0]);
+    }
+
+    @PostConstruct
+    private void init() {
+        consumerPrefix = hostName() + ":" + port;
+        createGroups();
+        for (int i = 0; i < seckillProperties.getConsumer().getMinConsumers(); i++) {
+            addWorker();
+        }
+    }
+
+    // 每个分区创建消费者组，stream不存在时一起创建，已经存在的忽略
+    private void createGroups() {
+        for (int p = 0; p < seckillProperties.getConsumer().getPartitions(); p++) {
+            try {
+                stringRedisTemplate.opsForStream().createGroup(partitionKey(p), ReadOffset.from("0"), RedisConstants.SECKILL_ORDER_GROUP);
+            } catch (Exception e) {
+                String message = String.valueOf(e.getMessage()) + (null == e.getCause() ? "" : e.getCause().getMessage());
+                if (!message.contains("BUSYGROUP")) {
+                    log.warn("创建消费者组失败，stream: {}", partitionKey(p), e);
+                }
+            }
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "unknown";
+        }
+    }
+
+    private void addWorker() {
+        Worker worker = new Worker(workerIndex.incrementAndGet());
+        workers.add(worker);
+        executor.execute(worker);
+        log.info("启动秒杀订单消费者: {}", worker.name);
+    }
+
+    // 按积压的消息数增减本实例的消费者，每次最多增减一个，所有实例一起逐步调整
+    @Scheduled(fixedDelayString = "#{@seckillProperties.consumer.scaleIntervalMillis}")
+    public void scale() {
+        if (shutdown) {
+            return;
+        }
+        SeckillProperties.ConsumerSpec spec = seckillProperties.getConsumer();
+        long lag = measureLag();
+        long consumers = liveConsumers();
+        List<Worker> running = new ArrayList<>();
+        for (Worker worker : workers) {
+            if (!worker.stopping) {
+                running.add(worker);
+            }
+        }
+        // 消费者比分区多也没有用，多出来的拿不到分区
+        if (lag > spec.getLagPerConsumer() * consumers && consumers < spec.getPartitions()
+                && running.size() < spec.getMaxConsumers()) {
+            log.info("秒杀订单积压{}条，消费者{}个，增加一个消费者", lag, consumers);
+            addWorker();
+        } else if (lag < spec.getLagPerConsumer() * (consumers - 1) / 2 && running.size() > spec.getMinConsumers()) {
+            Worker worker = running.get(running.size() - 1);
+            log.info("秒杀订单积压{}条，消费者{}个，停止消费者: {}", lag, consumers, worker.name);
+            worker.stopping = true;
+        }
+    }
+
+    // 积压的消息数 = 还没投递的（XINFO GROUPS拿到已投递的最后一个id，之后的都还没投递）+ 已投递没确认的（XPENDING）
+    // 没投递的每个分区最多数到lagPerConsumer条，够判断是否需要增加消费者就行
+    private long measureLag() {
+        SeckillProperties.ConsumerSpec spec = seckillProperties.getConsumer();
+        long lag = 0;
+        for (int p = 0; p < spec.getPartitions(); p++) {
+            String key = partitionKey(p);
+            try {
+                StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(key);
+                for (int i = 0; i < groups.size(); i++) {
+                    StreamInfo.XInfoGroup group = groups.get(i);
+                    if (!RedisConstants.SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                        continue;
+                    }
+                    List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(key,
+                            Range.rightUnbounded(Range.Bound.inclusive(group.lastDeliveredId())),
+                            RedisZSetCommands.Limit.limit().count((int) spec.getLagPerConsumer() + 1));
+                    int count = undelivered.size();
+                    if (count > 0 && undelivered.get(0).getId().getValue().equals(group.lastDeliveredId())) {
+                        count--;
+                    }
+                    lag += count + stringRedisTemplate.opsForStream().pending(key, RedisConstants.SECKILL_ORDER_GROUP).getTotalPendingMessages();
+                }
+            } catch (Exception e) {
+                log.warn("查询秒杀订单积压失败，stream: {}", key, e);
+            }
+        }
+        return lag;
+    }
+
+    // 所有实例中租约有效期内有心跳的消费者数
+    private long liveConsumers() {
+        long leaseMillis = TimeUnit.SECONDS.toMillis(seckillProperties.getConsumer().getPartitionLeaseSeconds());
+        Long count = stringRedisTemplate.opsForZSet().count(RedisConstants.SECKILL_CONSUMERS_KEY,
+                System.currentTimeMillis() - leaseMillis, Double.MAX_VALUE);
+        return null == count ? 0 : count;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        executor.shutdown();
+        try {
+            // 等正在处理的一批完成，并释放分区租约
+            executor.awaitTermination(seckillProperties.getConsumer().getBlockMillis() + 10000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        private final String name;
+        // 拥有的分区，只在这个消费者的线程中访问
+        private final Set<Integer> owned = new HashSet<>();
+        private volatile boolean stopping;
+        private long lastRebalance;
+        private long lastRenew;
+
+        private Worker(int index) {
+            this.index = index;
+            this.name = consumerPrefix + "-" + index;
+        }
+
+        @Override
+        public void run() {
+            SeckillProperties.ConsumerSpec spec = seckillProperties.getConsumer();
+            long rebalanceMillis = TimeUnit.SECONDS.toMillis(spec.getPartitionLeaseSeconds()) / 3;
+            Thread.currentThread().setName("seckill-order-consumer-" + index);
+            try {
+                while (!stopping && !shutdown) {
+                    try {
+                        // 1 续期、重新分配分区
+                        // 顺便处理pendinglist，SeckillOrderStreamManager会把其他消费者超时没确认的消息转给分区现在的消费者
+                        if (System.currentTimeMillis() - lastRebalance >= rebalanceMillis) {
+                            rebalance();
+                            handlePendingList();
+                        }
+                        if (owned.isEmpty()) {
+                            Thread.sleep(spec.getBlockMillis());
+                            continue;
+                        }
+                        // 2 获取拥有的分区中的订单  XREADGROUP GROUP g1 host:port-1 COUNT 100 BLOCK 2000 STREAMS s1 s2 > >
+                        Map<String, ReadOffset> offsets = new HashMap<>();
+                        for (Integer partition : owned) {
+                            offsets.put(partitionKey(partition), ReadOffset.lastConsumed());
+                        }
+                        List<MapRecord<String, Object, Object>> list = read(offsets, true);
+                        if (list == null || list.isEmpty()) {
+                            continue;
+                        }
+                        // 3 创建这一批订单，并确认消息XACK
+                        handleRecords(list);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } catch (Exception e) {
+                        log.error("处理订单异常！", e);
+                        handlePendingList();
+                    }
+                }
+            } finally {
+                // 停止时释放所有分区，其他消费者马上就能接手
+                for (Integer partition : owned) {
+                    release(partition);
+                }
+                owned.clear();
+                stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_CONSUMERS_KEY, name);
+                workers.remove(this);
+                log.info("秒杀订单消费者已停止: {}", name);
+                Thread.currentThread().setName("seckill-order-consumer");
+            }
+        }
+
+        // 处理过程中有异常，需要从pendinglist中得到没有ack的消息
+        // 每个分区从0开始往后读一遍，不会一直重试同一条消息：
+        // 一批失败时逐条处理，失败的留在pendinglist中，每读一次投递次数加一，超过次数由SeckillOrderStreamManager转入死信stream
+        // pendinglist可能很长，循环中按时续期，续期失败的分区不再读
+        private void handlePendingList() {
+            long renewMillis = TimeUnit.SECONDS.toMillis(seckillProperties.getConsumer().getPartitionLeaseSeconds()) / 3;
+            Map<String, ReadOffset> offsets = new HashMap<>();
+            for (Integer partition : owned) {
+                offsets.put(partitionKey(partition), ReadOffset.from("0"));
+            }
+            while (!shutdown && !offsets.isEmpty()) {
+                try {
+                    // 0 续期，租约丢了的分区交给新的消费者处理
+                    if (System.currentTimeMillis() - lastRenew >= renewMillis) {
+                        renewOwned();
+                        offsets.keySet().removeIf(stream -> !ownsStream(stream));
+                        if (offsets.isEmpty()) {
+                            break;
+                        }
+                    }
+                    // 1 获取pendinglist中的订单  XREADGROUP GROUP g1 host:port-1 COUNT 100 STREAMS s1 s2 0 0
+                    List<MapRecord<String, Object, Object>> list = read(offsets, false);
+                    // 2 如果为空，说明pendinglist中没有异常消息，结束循环
+                    if (list == null || list.isEmpty()) {
+                        break;
+                    }
+                    // 3 下一次从这一批的最后一条之后读，没有读到消息的分区已经读完了
+                    Map<String, ReadOffset> next = new HashMap<>();
+                    for (MapRecord<String, Object, Object> record : list) {
+                        next.put(record.getStream(), ReadOffset.from(record.getId()));
+                    }
+                    offsets = next;
+                    // 4 创建这一批订单，并确认消息XACK
+                    try {
+                        handleRecords(list);
+                    } catch (Exception e) {
+                        log.error("处理pendinglist订单异常，改为逐条处理", e);
+                        for (MapRecord<String, Object, Object> record : list) {
+                            // 租约丢了的分区不再处理
+                            if (!ownsStream(record.getStream())) {
+                                offsets.remove(record.getStream());
+                                continue;
+                            }
+                            try {
+                                handleRecords(Collections.singletonList(record));
+                            } catch (Exception ex) {
+                                log.error("处理pendinglist订单异常，stream: {}，id: {}", record.getStream(), record.getId(), ex);
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("读取pendinglist异常！", e);
+                    break;
+                }
+            }
+        }
+
+        private List<MapRecord<String, Object, Object>> read(Map<String, ReadOffset> readOffsets, boolean block) {
+            SeckillProperties.ConsumerSpec spec = seckillProperties.getConsumer();
+            StreamOffset<String>[] offsets = streamOffsets(readOffsets);
+            StreamReadOptions options = StreamReadOptions.empty().count(spec.getBatchSize());
+            if (block) {
+                options = options.block(Duration.ofMillis(spec.getBlockMillis()));
+            }
+            return stringRedisTemplate.opsForStream().read(
+                    Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, name), options, offsets);
+        }
+
+        // 一批订单在一个事务中创建，提交之后每个分区一次XACK
+        // 提交前续期这一批涉及的分区，续期失败说明租约已经被其他消费者拿走，抛出异常回滚，消息留在pendinglist中
+        // 续期成功之后租约还有一个完整的有效期，足够提交事务
+        private void handleRecords(List<MapRecord<String, Object, Object>> list) {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+            Map<String, List<RecordId>> ids = new HashMap<>();
+            for (MapRecord<String, Object, Object> record : list) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                ids.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+            }
+            long leaseMillis = TimeUnit.SECONDS.toMillis(seckillProperties.getConsumer().getPartitionLeaseSeconds());
+            voucherOrderService.createVoucherOrders(voucherOrders, () -> {
+                for (String stream : ids.keySet()) {
+                    Integer partition = partitionOf(stream);
+                    if (null == partition || !owned.contains(partition) || !renew(partition, leaseMillis)) {
+                        owned.remove(partition);
+                        return false;
+                    }
+                }
+                return true;
+            });
+            for (Map.Entry<String, List<RecordId>> entry : ids.entrySet()) {
+                stringRedisTemplate.opsForStream().acknowledge(entry.getKey(), RedisConstants.SECKILL_ORDER_GROUP,
+                        entry.getValue().toArray(new RecordId[0]));
+            }
+        }
+
+        // 心跳、续期，按消费者数量计算自己的份额，多的释放，少的去抢
+        private void rebalance() {
+            SeckillProperties.ConsumerSpec spec = seckillProperties.getConsumer();
+            long now = System.currentTimeMillis();
+            long leaseMillis = TimeUnit.SECONDS.toMillis(spec.getPartitionLeaseSeconds());
+            lastRebalance = now;
+            // 1 心跳、续期，顺便清理已经没有心跳的消费者
+            renewOwned();
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.SECKILL_CONSUMERS_KEY, 0, now - leaseMillis);
+
+            // 2 份额
+            int share = (int) Math.ceil((double) spec.getPartitions() / Math.max(1, liveConsumers()));
+            // 3 多的释放
+            Iterator<Integer> iterator = owned.iterator();
+            while (owned.size() > share && iterator.hasNext()) {
+                release(iterator.next());
+                iterator.remove();
+            }
+            // 4 少的去抢没人拥有的分区，从随机位置开始，不同消费者不会都去抢同一个
+            int start = ThreadLocalRandom.current().nextInt(spec.getPartitions());
+            for (int i = 0; i < spec.getPartitions() && owned.size() < share; i++) {
+                int partition = (start + i) % spec.getPartitions();
+                if (!owned.contains(partition) && tryAcquire(partition, leaseMillis)) {
+                    owned.add(partition);
+                    log.info("秒杀订单消费者{}拥有分区{}", name, partition);
+                }
+            }
+        }
+
+        // 心跳，续期拥有的分区，续期失败的（租约过期后被其他消费者拿走了）不再拥有
+        private void renewOwned() {
+            long now = System.currentTimeMillis();
+            long leaseMillis = TimeUnit.SECONDS.toMillis(seckillProperties.getConsumer().getPartitionLeaseSeconds());
+            lastRenew = now;
+            stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_CONSUMERS_KEY, name, now);
+            owned.removeIf(partition -> !renew(partition, leaseMillis));
+        }
+
+        private boolean ownsStream(String stream) {
+            Integer partition = partitionOf(stream);
+            return null != partition && owned.contains(partition);
+        }
+
+        private boolean tryAcquire(int partition, long leaseMillis) {
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.SECKILL_PARTITION_LOCK_KEY + partition, name, leaseMillis, TimeUnit.MILLISECONDS);
+            return Boolean.TRUE.equals(success);
+        }
+
+        private boolean renew(int partition, long leaseMillis) {
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.SECKILL_PARTITION_LOCK_KEY + partition), name, String.valueOf(leaseMillis));
+            return null != result && result == 1L;
+        }
+
+        private void release(int partition) {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT,
+                    Collections.singletonList(RedisConstants.SECKILL_PARTITION_LOCK_KEY + partition), name);
+        }
+    }
+}
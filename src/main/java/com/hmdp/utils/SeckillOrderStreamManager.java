@@ -0,0 +1,233 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 秒杀订单stream的维护，每个实例都定时执行，靠XCLAIM的原子性不会重复处理
+// 1 回收：分区换了消费者之后，旧消费者名下没确认的消息转给分区现在的消费者，由它在处理pendinglist时创建订单
+// 2 死信：投递次数太多还没确认的消息（数据有问题，每次都失败）转入死信stream并确认，不再重试
+//   订单没有创建，redis中已经扣了库存、占了一人一单的资格，转入死信时补偿：库存加回去，用户可以重新下单
+//   数据库中已经有这个订单的（提交成功但是没有确认）不补偿
+// 3 裁剪：所有消费者组都已经确认的消息从stream中删除，redis内存不会随着一次次秒杀一直增长
+// 4 清理：没有pending消息、很久没有活动的消费者从消费者组中删除
+// 回收用的是XPENDING + XCLAIM，和XAUTOCLAIM效果一样，XPENDING还能拿到投递次数，判断死信要用
+@Slf4j
+@Component
+public class SeckillOrderStreamManager {
+
+    // 转入死信stream时先把消息claim到这个消费者名下
+    private static final String DEAD_LETTER_CONSUMER = "dead-letter";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("seckill_stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    @Scheduled(fixedDelayString = "#{@seckillProperties.stream.maintainIntervalMillis}",
+            initialDelayString = "#{@seckillProperties.stream.maintainIntervalMillis}")
+    public void maintain() {
+        long deadLetters = 0;
+        for (int p = 0; p < seckillProperties.getConsumer().getPartitions(); p++) {
+            String key = SeckillOrderConsumerPool.partitionKey(p);
+            try {
+                deadLetters += reclaim(p, key);
+            } catch (Exception e) {
+                log.warn("回收秒杀订单stream的消息失败，stream: {}", key, e);
+            }
+            // 裁剪失败也要清理消费者
+            try {
+                trim(key);
+            } catch (Exception e) {
+                log.warn("裁剪秒杀订单stream失败，stream: {}", key, e);
+            }
+            try {
+                removeIdleConsumers(key);
+            } catch (Exception e) {
+                log.warn("清理秒杀订单消费者失败，stream: {}", key, e);
+            }
+        }
+        if (deadLetters > 0) {
+            stringRedisTemplate.opsForStream().trim(RedisConstants.SECKILL_ORDER_DEAD_LETTER_STREAM,
+                    seckillProperties.getStream().getDeadLetterMaxLen(), true);
+        }
+    }
+
+    // 返回转入死信stream的消息数
+    long reclaim(int partition, String key) {
+        SeckillProperties.StreamSpec spec = seckillProperties.getStream();
+        // 1 XPENDING stream.orders:0 g1 - + 100
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(key, RedisConstants.SECKILL_ORDER_GROUP,
+                Range.unbounded(), spec.getPendingScanCount());
+        if (pendingMessages.isEmpty()) {
+            return 0;
+        }
+        String owner = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_PARTITION_LOCK_KEY + partition);
+        List<RecordId> toOwner = new ArrayList<>();
+        long deadLetters = 0;
+        for (PendingMessage message : pendingMessages) {
+            Duration idle = message.getElapsedTimeSinceLastDelivery();
+            if (message.getTotalDeliveryCount() >= spec.getMaxDeliveries()) {
+                // 2 投递次数太多，并且很久没有确认，转入死信stream
+                // 第N次投递的消息可能还在消费者手里处理，XCLAIM的最小空闲时间挡不住没有重新投递、还在处理的消费者，
+                // 所以和回收一样要空闲超过minIdleMillis（比一批订单的处理时间长得多）才转，否则补偿之后消费者又提交了订单
+                if (idle.toMillis() >= spec.getMinIdleMillis()
+                        && deadLetter(key, message, Duration.ofMillis(spec.getMinIdleMillis()))) {
+                    deadLetters++;
+                }
+            } else if (null != owner && !owner.equals(message.getConsumerName())
+                    && idle.toMillis() >= spec.getMinIdleMillis()) {
+                // 3 不在分区现在的消费者名下，并且很久没有确认，旧消费者可能已经停了
+                toOwner.add(message.getId());
+            }
+        }
+        if (!toOwner.isEmpty()) {
+            // XCLAIM stream.orders:0 g1 host:port-1 60000 id1 id2 ...
+            List<StringRecord> claimed = claim(key, owner, Duration.ofMillis(spec.getMinIdleMillis()),
+                    toOwner.toArray(new RecordId[0]));
+            log.info("秒杀订单stream {}中{}条超时没确认的消息转给消费者{}", key, claimed.size(), owner);
+        }
+        return deadLetters;
+    }
+
+    private boolean deadLetter(String key, PendingMessage message, Duration minIdle) {
+        List<StringRecord> claimed = claim(key, DEAD_LETTER_CONSUMER, minIdle, message.getId());
+        if (claimed.isEmpty()) {
+            return false;
+        }
+        Map<String, String> fields = new HashMap<>(claimed.get(0).getValue());
+        fields.put("stream", key);
+        fields.put("messageId", message.getIdAsString());
+        fields.put("deliveries", String.valueOf(message.getTotalDeliveryCount()));
+        fields.put("consumer", message.getConsumerName());
+        stringRedisTemplate.opsForStream().add(
+                StreamRecords.newRecord().in(RedisConstants.SECKILL_ORDER_DEAD_LETTER_STREAM).ofMap(fields));
+        stringRedisTemplate.opsForStream().acknowledge(key, RedisConstants.SECKILL_ORDER_GROUP, message.getId());
+        log.warn("秒杀订单投递{}次都没有处理成功，转入死信stream，stream: {}，id: {}，消息: {}",
+                message.getTotalDeliveryCount(), key, message.getIdAsString(), claimed.get(0).getValue());
+        compensate(claimed.get(0).getValue());
+        return true;
+    }
+
+    // 死信订单的补偿，失败只记日志，需要人工按死信stream处理
+    private void compensate(Map<String, String> fields) {
+        try {
+            Long userId = Long.valueOf(fields.get("userId"));
+            Long voucherId = Long.valueOf(fields.get("voucherId"));
+            // 1 订单已经创建了，只是没有确认，不补偿
+            Integer count = voucherOrderService.query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+            if (null != count && count > 0) {
+                log.info("死信订单已经创建，不补偿，userId: {}，voucherId: {}", userId, voucherId);
+                return;
+            }
+            // 2 库存加回去，放掉一人一单的资格
+            if (seckillStockBuckets.compensate(voucherId, userId)) {
+                log.warn("死信订单已补偿，库存加一，userId: {}，voucherId: {}", userId, voucherId);
+            }
+        } catch (Exception e) {
+            log.error("死信订单补偿失败，需要人工处理，消息: {}", fields, e);
+        }
+    }
+
+    // StreamOperations没有XCLAIM，直接用连接执行
+    private List<StringRecord> claim(String key, String newOwner, Duration minIdle, RecordId... ids) {
+        List<StringRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                ((StringRedisConnection) connection).xClaim(key, RedisConstants.SECKILL_ORDER_GROUP, newOwner, minIdle, ids));
+        return null == claimed ? Collections.emptyList() : claimed;
+    }
+
+    // 每个消费者组，最后投递的id之前、最早的pending消息之前的消息都已经确认过了
+    private void trim(String key) {
+        String minId = null;
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(key);
+        if (groups.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            StreamInfo.XInfoGroup group = groups.get(i);
+            String safeId = group.lastDeliveredId();
+            if (group.pendingCount() > 0) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(key, group.groupName());
+                // XINFO之后pending的消息可能刚好都确认了，这时没有最小的id，用最后投递的id
+                if (null != summary && null != summary.minMessageId()) {
+                    safeId = summary.minMessageId();
+                }
+            }
+            if (null == safeId) {
+                continue;
+            }
+            if (null == minId || compareIds(safeId, minId) < 0) {
+                minId = safeId;
+            }
+        }
+        if (null == minId || "0-0".equals(minId)) {
+            return;
+        }
+        Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(key), minId);
+        if (null != trimmed && trimmed > 0) {
+            log.debug("裁剪秒杀订单stream {}，删除{}条已确认的消息", key, trimmed);
+        }
+    }
+
+    // 扩缩容之后停掉的消费者会一直留在消费者组中，没有pending消息的删掉
+    private void removeIdleConsumers(String key) {
+        long minIdleMillis = seckillProperties.getStream().getMinIdleMillis();
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(key, RedisConstants.SECKILL_ORDER_GROUP);
+        for (int i = 0; i < consumers.size(); i++) {
+            StreamInfo.XInfoConsumer consumer = consumers.get(i);
+            if (consumer.pendingCount() == 0 && consumer.idleTimeMs() >= minIdleMillis) {
+                stringRedisTemplate.opsForStream().deleteConsumer(key,
+                        Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumer.consumerName()));
+            }
+        }
+    }
+
+    // stream的id是 毫秒时间戳-序号
+    private static int compareIds(String a, String b) {
+        String[] x = a.split("-");
+        String[] y = b.split("-");
+        int result = Long.compare(Long.parseLong(x[0]), Long.parseLong(y[0]));
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(x.length > 1 ? Long.parseLong(x[1]) : 0, y.length > 1 ? Long.parseLong(y[1]) : 0);
+    }
+}
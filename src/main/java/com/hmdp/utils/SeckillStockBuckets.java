@@ -0,0 +1,250 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// 秒杀的分段库存，一个优惠券的库存分成多个分段，每个分段是单独的key，可以分散到redis集群的不同节点
+// 1 用户按userId分到一个分段，一人一单在这个分段的订单key中判断，同一个用户永远是同一个分段
+// 2 先扣自己分段的库存，没有了预占一人一单的资格，再依次到后面的分段扣，扣到了再把预占转成订单
+// 3 卖完的分段记在本地，一段时间内不再去redis扣；库存可能被归还、补偿到这个分段，过期之后再去看，本实例归还时马上清掉
+// 4 分段的脚本只操作同一个槽的key，订单消息在脚本之后发送，发送失败时库存加回去、放掉一人一单的资格
+//   中途挂了的请求扣了库存没有发出消息，少卖不会多卖
+// 分段数是1的优惠券还是用原来的seckill.lua和SECKILL_STOCK_KEY
+@Slf4j
+@Component
+public class SeckillStockBuckets {
+
+    // 和seckill.lua的返回值一样
+    public static final int OK = 0;
+    public static final int NO_STOCK = 1;
+    public static final int DUPLICATE = 2;
+    // seckill_bucket.lua：自己的分段没有库存了，已经占住了一人一单的资格
+    private static final int BUCKET_EMPTY = 3;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> BUCKET_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> CONFIRM_SCRIPT;
+    private static final DefaultRedisScript<Long> COMPENSATE_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        BUCKET_SCRIPT = new DefaultRedisScript<>();
+        BUCKET_SCRIPT.setLocation(new ClassPathResource("seckill_bucket.lua"));
+        BUCKET_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_bucket_take.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+        CONFIRM_SCRIPT = new DefaultRedisScript<>();
+        CONFIRM_SCRIPT.setLocation(new ClassPathResource("seckill_bucket_confirm.lua"));
+        CONFIRM_SCRIPT.setResultType(Long.class);
+        COMPENSATE_SCRIPT = new DefaultRedisScript<>();
+        COMPENSATE_SCRIPT.setLocation(new ClassPathResource("seckill_compensate.lua"));
+        COMPENSATE_SCRIPT.setResultType(Long.class);
+    }
+
+    // 优惠券的分段数，新增之后不会变
+    private final Map<Long, Integer> bucketCounts = new ConcurrentHashMap<>();
+    // 已经卖完的分段，优惠券id:分段 -> 发现卖完的时间
+    private final Map<String, Long> soldOut = new ConcurrentHashMap<>();
+
+    public static String stockKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    public static String orderKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    public static String reserveKey(Long voucherId, int bucket, Long userId) {
+        return RedisConstants.SECKILL_RESERVE_KEY + "{" + voucherId + ":" + bucket + "}:" + userId;
+    }
+
+    // 用户所属的分段
+    public static int bucketOf(Long userId, int buckets) {
+        return (int) Math.floorMod(userId, (long) buckets);
+    }
+
+    // 把库存平均分到每个分段，除不尽的分给前面的分段，分段数不超过库存数
+    static int[] split(int stock, int buckets) {
+        buckets = Math.max(1, Math.min(buckets, Math.max(1, stock)));
+        int[] stocks = new int[buckets];
+        for (int b = 0; b < buckets; b++) {
+            stocks[b] = stock / buckets + (b < stock % buckets ? 1 : 0);
+        }
+        return stocks;
+    }
+
+    // 新增秒杀券时把库存分到每个分段
+    public void init(Long voucherId, int stock, int buckets) {
+        int[] split = split(stock, buckets);
+        buckets = split.length;
+        if (buckets == 1) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            Map<String, String> stocks = new HashMap<>(buckets * 2);
+            for (int b = 0; b < buckets; b++) {
+                stocks.put(stockKey(voucherId, b), String.valueOf(split[b]));
+            }
+            // 集群中分段在不同的槽，不能用一次MSET
+            stocks.forEach((key, value) -> stringRedisTemplate.opsForValue().set(key, value));
+        }
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_BUCKETS_KEY + voucherId, String.valueOf(buckets));
+        bucketCounts.put(voucherId, buckets);
+    }
+
+    // 优惠券的分段数，redis中没有记录的是分段之前新增的，只有一个库存key
+    public int bucketCount(Long voucherId) {
+        Integer buckets = bucketCounts.get(voucherId);
+        if (null != buckets) {
+            return buckets;
+        }
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_BUCKETS_KEY + voucherId);
+        if (null == value) {
+            return 1;
+        }
+        buckets = Integer.parseInt(value);
+        bucketCounts.put(voucherId, buckets);
+        return buckets;
+    }
+
+    // 判断资格、扣库存并发送订单消息，返回OK、NO_STOCK或者DUPLICATE
+    public int acquire(Long voucherId, Long userId, Long orderId, String stream) {
+        String[] args = {voucherId.toString(), userId.toString(), orderId.toString(), stream};
+        int buckets = bucketCount(voucherId);
+        if (buckets == 1) {
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), (Object[]) args);
+            return result.intValue();
+        }
+        // 1 自己的分段，判断一人一单并扣库存
+        int home = bucketOf(userId, buckets);
+        String reserveKey = reserveKey(voucherId, home, userId);
+        Long result = stringRedisTemplate.execute(BUCKET_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home), reserveKey),
+                userId.toString(), String.valueOf(TimeUnit.SECONDS.toMillis(RedisConstants.SECKILL_RESERVE_TTL)));
+        if (result.intValue() == OK) {
+            sendOrder(voucherId, userId, orderId, stream, stockKey(voucherId, home), orderKey(voucherId, home));
+            return OK;
+        }
+        if (result.intValue() != BUCKET_EMPTY) {
+            return result.intValue();
+        }
+        markSoldOut(voucherId, home);
+        try {
+            // 2 自己的分段没有库存了，依次到后面的分段扣
+            for (int i = 1; i < buckets; i++) {
+                int bucket = (home + i) % buckets;
+                if (isSoldOut(voucherId, bucket)) {
+                    continue;
+                }
+                Long taken = stringRedisTemplate.execute(TAKE_SCRIPT, Collections.singletonList(stockKey(voucherId, bucket)));
+                if (taken.intValue() != OK) {
+                    markSoldOut(voucherId, bucket);
+                    continue;
+                }
+                // 3 扣到了，预占转成订单，预占过期期间同一个用户已经下过单的，库存加回去
+                Long confirmed = stringRedisTemplate.execute(CONFIRM_SCRIPT,
+                        Arrays.asList(orderKey(voucherId, home), reserveKey), userId.toString());
+                if (confirmed.intValue() != OK) {
+                    stringRedisTemplate.opsForValue().increment(stockKey(voucherId, bucket));
+                    clearSoldOut(voucherId);
+                    return DUPLICATE;
+                }
+                sendOrder(voucherId, userId, orderId, stream, stockKey(voucherId, bucket), orderKey(voucherId, home));
+                return OK;
+            }
+        } finally {
+            // 4 不管扣没扣到，预占都不再需要
+            stringRedisTemplate.delete(reserveKey);
+        }
+        return NO_STOCK;
+    }
+
+    // 发送订单消息  XADD stream.orders:{分区} * userId 1 voucherId 2 id 3
+    // 发送失败时扣的库存加回去，放掉一人一单的资格
+    public void sendOrder(Long voucherId, Long userId, Long orderId, String stream, String stockKey, String orderKey) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("userId", userId.toString());
+        fields.put("voucherId", voucherId.toString());
+        fields.put("id", orderId.toString());
+        try {
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(stream).ofMap(fields));
+        } catch (RuntimeException e) {
+            try {
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+                if (null != stockKey) {
+                    stringRedisTemplate.opsForValue().increment(stockKey);
+                    clearSoldOut(voucherId);
+                }
+            } catch (RuntimeException ex) {
+                log.error("发送订单消息失败后归还库存失败，voucherId: {}，userId: {}", voucherId, userId, ex);
+            }
+            throw e;
+        }
+    }
+
+    // 订单没有创建成功（转入死信），放掉用户的一人一单资格，库存加回用户所属的分段（分段之间的库存可以互相补）
+    // 返回是否补偿了，已经补偿过的不会重复加库存
+    public boolean compensate(Long voucherId, Long userId) {
+        int buckets = bucketCount(voucherId);
+        List<String> keys;
+        if (buckets == 1) {
+            keys = Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId, RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        } else {
+            int home = bucketOf(userId, buckets);
+            keys = Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home));
+        }
+        Long result = stringRedisTemplate.execute(COMPENSATE_SCRIPT, keys, userId.toString());
+        if (null != result && result == 1L) {
+            clearSoldOut(voucherId);
+            return true;
+        }
+        return false;
+    }
+
+    void markSoldOut(Long voucherId, int bucket) {
+        soldOut.put(voucherId + ":" + bucket, System.currentTimeMillis());
+    }
+
+    // 记录超过soldOutRecheckMillis的不再算卖完，再去redis看一次
+    boolean isSoldOut(Long voucherId, int bucket) {
+        String key = voucherId + ":" + bucket;
+        Long markedAt = soldOut.get(key);
+        if (null == markedAt) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt < seckillProperties.getSoldOutRecheckMillis()) {
+            return true;
+        }
+        soldOut.remove(key, markedAt);
+        return false;
+    }
+
+    // 库存加回了这个优惠券的某个分段，清掉所有分段的卖完记录
+    public void clearSoldOut(Long voucherId) {
+        String prefix = voucherId + ":";
+        soldOut.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+}
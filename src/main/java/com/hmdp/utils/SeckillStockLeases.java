@@ -0,0 +1,274 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 秒杀的本地库存租约，hmdp.seckill.lease.enabled开启
+// 1 每个实例从redis的库存中租一块到本地，在本地用原子计数判断库存，库存卖完之后的请求不用访问redis
+// 2 本地扣到库存的请求再到redis判断一人一单（seckill_admit.lua），一人一单还是以redis为准，之后发送订单消息
+// 3 本地剩余的库存不多时后台提前续租，redis也没有库存之后隔一段时间才再去看一次
+// 4 秒杀结束或者实例停止时，没用完的库存还给redis，结束的租约从本地删掉
+// 只给redis中有库存key、数据库中存在的秒杀券创建租约，不存在的id不会留在本地
+// 分段库存的优惠券从各个分段租，一人一单在用户所属分段的订单key中判断
+// 实例没有正常停止时租走的库存就丢了，少卖不会多卖，blockSize不要太大
+@Slf4j
+@Component
+public class SeckillStockLeases {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockBuckets seckillStockBuckets;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_stock_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("seckill_admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final ExecutorService SECKILL_LEASE_EXECUTOR = Executors.newSingleThreadExecutor(); // 后台续租
+
+    // 优惠券id -> 本实例的租约
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return seckillProperties.getLease().isEnabled();
+    }
+
+    // 判断资格、扣库存并发送订单消息，返回值和SeckillStockBuckets.acquire一样
+    public int acquire(Long voucherId, Long userId, Long orderId, String stream) {
+        Lease lease = leaseOf(voucherId);
+        // 不存在的优惠券、已经结束的秒杀，不再租库存，直接在redis中判断
+        if (null == lease || lease.ended) {
+            return seckillStockBuckets.acquire(voucherId, userId, orderId, stream);
+        }
+        // 1 本地扣库存
+        if (!takePermit(lease)) {
+            return SeckillStockBuckets.NO_STOCK;
+        }
+        // 2 redis中判断一人一单，再发送订单消息，发送失败时放掉一人一单的资格
+        String orderKey = lease.buckets == 1
+                ? RedisConstants.SECKILL_ORDER_KEY + voucherId
+                : SeckillStockBuckets.orderKey(voucherId, SeckillStockBuckets.bucketOf(userId, lease.buckets));
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(ADMIT_SCRIPT, Collections.singletonList(orderKey), userId.toString());
+            if (result.intValue() == SeckillStockBuckets.OK) {
+                seckillStockBuckets.sendOrder(voucherId, userId, orderId, stream, null, orderKey);
+            }
+        } catch (RuntimeException e) {
+            putBack(lease);
+            throw e;
+        }
+        if (result.intValue() != SeckillStockBuckets.OK) {
+            // 重复下单，本地扣的库存加回去
+            putBack(lease);
+            return result.intValue();
+        }
+        // 3 剩的不多了，后台提前续租
+        SeckillProperties.LeaseSpec spec = seckillProperties.getLease();
+        if (lease.permits.get() < spec.getBlockSize() * spec.getRefillRatio() && lease.refilling.compareAndSet(false, true)) {
+            SECKILL_LEASE_EXECUTOR.execute(() -> {
+                try {
+                    refill(lease);
+                } catch (Exception e) {
+                    log.warn("续租秒杀库存失败，voucherId: {}", voucherId, e);
+                } finally {
+                    lease.refilling.set(false);
+                }
+            });
+        }
+        return SeckillStockBuckets.OK;
+    }
+
+    // 加回之前租约已经结束了（期间已经归还过），再归还一次
+    private void putBack(Lease lease) {
+        lease.permits.incrementAndGet();
+        if (lease.ended) {
+            giveBack(lease);
+        }
+    }
+
+    // 本地的库存大于0时减一，用完了同步续租一次
+    boolean takePermit(Lease lease) {
+        while (true) {
+            int permits = lease.permits.get();
+            if (permits > 0) {
+                if (lease.permits.compareAndSet(permits, permits - 1)) {
+                    return true;
+                }
+                continue;
+            }
+            // redis中刚看过没有库存，直接返回
+            if (System.currentTimeMillis() - lease.exhaustedAt < seckillProperties.getLease().getExhaustedRecheckMillis()) {
+                return false;
+            }
+            if (refill(lease) == 0) {
+                return false;
+            }
+        }
+    }
+
+    // 从redis租一块库存，分段的优惠券从随机的分段开始，一个分段不够再去下一个
+    // 同一个优惠券同一时间只有一个线程在租，其他线程等它租完再看本地的库存
+    int refill(Lease lease) {
+        synchronized (lease) {
+            SeckillProperties.LeaseSpec spec = seckillProperties.getLease();
+            int permits = lease.permits.get();
+            if (lease.ended || (permits > 0 && permits >= spec.getBlockSize() * spec.getRefillRatio())) {
+                return permits;
+            }
+            int wanted = spec.getBlockSize();
+            int start = ThreadLocalRandom.current().nextInt(lease.buckets);
+            for (int i = 0; i < lease.buckets && wanted > 0; i++) {
+                int bucket = (start + i) % lease.buckets;
+                Long taken = stringRedisTemplate.execute(LEASE_SCRIPT,
+                        Collections.singletonList(stockKey(lease.voucherId, bucket, lease.buckets)), String.valueOf(wanted));
+                if (null != taken && taken > 0) {
+                    wanted -= taken.intValue();
+                    lease.lastBucket = bucket;
+                }
+            }
+            int leased = spec.getBlockSize() - wanted;
+            if (leased == 0) {
+                lease.exhaustedAt = System.currentTimeMillis();
+                return lease.permits.get();
+            }
+            log.debug("租到秒杀库存{}个，voucherId: {}", leased, lease.voucherId);
+            return lease.permits.addAndGet(leased);
+        }
+    }
+
+    // 查询数据库在computeIfAbsent之外，不会占着map的锁，同时创建的两个租约只留下一个
+    private Lease leaseOf(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (null != lease) {
+            return lease;
+        }
+        // 1 redis中没有库存key的不是秒杀券，不查数据库也不创建租约
+        int buckets = seckillStockBuckets.bucketCount(voucherId);
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(stockKey(voucherId, 0, buckets)))) {
+            return null;
+        }
+        // 2 数据库中不存在的不创建租约
+        lease = newLease(voucherId, buckets);
+        if (null == lease) {
+            return null;
+        }
+        Lease existing = leases.putIfAbsent(voucherId, lease);
+        return null == existing ? lease : existing;
+    }
+
+    private Lease newLease(Long voucherId, int buckets) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (null == voucher) {
+            return null;
+        }
+        Lease lease = new Lease(voucherId, buckets, voucher.getEndTime());
+        lease.ended = null != lease.endTime && LocalDateTime.now().isAfter(lease.endTime);
+        return lease;
+    }
+
+    private static String stockKey(Long voucherId, int bucket, int buckets) {
+        return buckets == 1 ? RedisConstants.SECKILL_STOCK_KEY + voucherId : SeckillStockBuckets.stockKey(voucherId, bucket);
+    }
+
+    // 秒杀结束的优惠券，没用完的库存还给redis，并从本地删掉租约
+    // 删掉之后还拿着这个租约的请求加回库存时会再归还一次，见putBack
+    @Scheduled(fixedDelayString = "#{@seckillProperties.lease.checkIntervalMillis}")
+    public void returnEnded() {
+        LocalDateTime now = LocalDateTime.now();
+        Iterator<Lease> iterator = leases.values().iterator();
+        while (iterator.hasNext()) {
+            Lease lease = iterator.next();
+            if (!lease.ended && null != lease.endTime && now.isAfter(lease.endTime)) {
+                giveBack(lease);
+            }
+            if (lease.ended) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // 实例停止时归还所有租约
+    @PreDestroy
+    public void shutdown() {
+        SECKILL_LEASE_EXECUTOR.shutdown();
+        Iterator<Lease> iterator = leases.values().iterator();
+        while (iterator.hasNext()) {
+            Lease lease = iterator.next();
+            try {
+                giveBack(lease);
+            } catch (Exception e) {
+                log.warn("归还秒杀库存失败，voucherId: {}", lease.voucherId, e);
+            }
+            iterator.remove();
+        }
+    }
+
+    // 标记结束之后本地不会再扣库存和续租，剩下的一次性加回最近租过的分段（分段之间的库存可以互相补）
+    private void giveBack(Lease lease) {
+        int remaining;
+        synchronized (lease) {
+            lease.ended = true;
+            remaining = lease.permits.getAndSet(0);
+        }
+        if (remaining > 0) {
+            stringRedisTemplate.opsForValue().increment(stockKey(lease.voucherId, lease.lastBucket, lease.buckets), remaining);
+            // 本实例记的卖完的分段马上清掉，其他实例等soldOutRecheckMillis之后再去看
+            seckillStockBuckets.clearSoldOut(lease.voucherId);
+            log.info("归还秒杀库存{}个，voucherId: {}", remaining, lease.voucherId);
+        }
+    }
+
+    static class Lease {
+        private final Long voucherId;
+        private final int buckets;
+        private final LocalDateTime endTime;
+        // 本地剩余的库存
+        private final AtomicInteger permits = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        // 最近一次在redis中租不到库存的时间
+        private volatile long exhaustedAt;
+        private volatile int lastBucket;
+        private volatile boolean ended;
+
+        Lease(Long voucherId, int buckets, LocalDateTime endTime) {
+            this.voucherId = voucherId;
+            this.buckets = buckets;
+            this.endTime = endTime;
+        }
+    }
+}
@@ -6,4 +6,8 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    // 店铺列表卡片需要的字段，不包含营业时间、创建时间等
+    public static final String[] SHOP_CARD_FIELDS = {
+            "id", "name", "typeId", "images", "area", "address", "x", "y", "avgPrice", "sold", "comments", "score"
+    };
 }
@@ -0,0 +1,21 @@
+-- 版本号没有变化才写入缓存，防止异步重建用旧数据覆盖已经失效的缓存
+-- 每次删除缓存时版本号加一，重建在查询数据库之前读取版本号，写入时版本号变了说明期间数据被修改过，放弃写入
+-- KEYS[1] 缓存key；KEYS[2] 版本号key
+-- ARGV[1] 查询数据库之前读到的版本号；ARGV[2] 缓存值；ARGV[3] 过期时间，毫秒，0表示不过期
+-- ARGV[4] 可选，1表示key已经存在时不写入（预热），返回2
+
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[1]) then
+    return 0
+end
+
+if (ARGV[4] == '1' and redis.call('exists', KEYS[1]) == 1) then
+    return 2
+end
+
+if (tonumber(ARGV[3]) > 0) then
+    redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3])
+else
+    redis.call('set', KEYS[1], ARGV[2])
+end
+return 1
@@ -0,0 +1,16 @@
+-- 版本号没有变化才写入hash缓存，和cache_cas.lua一样，防止重建用旧数据覆盖已经失效的缓存
+-- 先删除旧的hash再写入，保证不会残留已经为空的字段
+-- KEYS[1] 缓存key；KEYS[2] 版本号key
+-- ARGV[1] 查询数据库之前读到的版本号；ARGV[2] 过期时间，毫秒，0表示不过期；ARGV[3...] 字段和值交替
+
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[1]) then
+    return 0
+end
+
+redis.call('del', KEYS[1])
+redis.call('hset', KEYS[1], unpack(ARGV, 3))
+if (tonumber(ARGV[2]) > 0) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 1
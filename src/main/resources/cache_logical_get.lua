@@ -0,0 +1,37 @@
+-- 逻辑过期的读取，已经过期时同时获取重建租约，一次往返
+-- 逻辑过期时间和重建耗时在值的头部，见LogicalExpireHeader
+-- KEYS[1] 缓存key；KEYS[2] 重建锁的key
+-- ARGV[1] 当前时间，毫秒；ARGV[2] 提前重建系数 beta * -ln(rand)，0表示不提前重建
+-- ARGV[3] 租约标识，释放时比较；ARGV[4] 租约有效期，毫秒
+-- 返回 {值, 是否拿到了租约 1/0}，key不存在返回空数组
+
+local value = redis.call('get', KEYS[1])
+if (not value) then
+    return {}
+end
+
+-- 没有头部的（空值、旧数据）交给调用方判断
+if (string.len(value) <= 17 or string.byte(value, 1) ~= 0xE7) then
+    return {value, 0}
+end
+
+-- 大端的两个long，毫秒时间戳在2^53以内，lua的number可以精确表示
+local expireAt = 0
+for i = 2, 9 do
+    expireAt = expireAt * 256 + string.byte(value, i)
+end
+local buildMillis = 0
+for i = 10, 17 do
+    buildMillis = buildMillis * 256 + string.byte(value, i)
+end
+
+-- 没有过期（XFetch：now + buildMillis * beta * -ln(rand) < expireAt）
+if (tonumber(ARGV[1]) + buildMillis * tonumber(ARGV[2]) < expireAt) then
+    return {value, 0}
+end
+
+-- 已经过期，获取租约，拿到的调用方负责重建
+if (redis.call('set', KEYS[2], ARGV[3], 'NX', 'PX', ARGV[4])) then
+    return {value, 1}
+end
+return {value, 0}
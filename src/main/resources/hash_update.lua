@@ -0,0 +1,15 @@
+-- 只更新hash缓存中的一个字段，不重写整个实体
+-- KEYS[1] 缓存key
+-- ARGV[1] 操作，set或incr；ARGV[2] 字段名；ARGV[3] 值或增量
+
+-- 缓存不存在（或者缓存的是空值）时不更新，否则会写出一个只有一个字段的残缺缓存
+if (redis.call('hget', KEYS[1], '_') ~= '1') then
+    return 0
+end
+
+if (ARGV[1] == 'incr') then
+    redis.call('hincrby', KEYS[1], ARGV[2], ARGV[3])
+else
+    redis.call('hset', KEYS[1], ARGV[2], ARGV[3])
+end
+return 1
@@ -12,6 +12,8 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1 3 订单id
 local orderId = ARGV[3]
+-- 1 4 订单stream，按用户id分区 stream.orders:{分区}
+local streamKey = ARGV[4]
 
 -- 2 数据key
 -- 2 1 库存key
@@ -38,8 +40,8 @@ redis.call("incrby", stockKey, -1)
 -- 3 5 下单（保存用户）
 redis.call("sadd", orderKey, userId)
 
--- 3 6认定有资格后，向队列发送消息 XADD stream.orders * k1 v1 k2 v2
-redis.call("xadd", "stream.orders", "*", "userId", userId, "voucherId", voucherId, "id", orderId);
+-- 3 6认定有资格后，向队列发送消息 XADD stream.orders:{分区} * k1 v1 k2 v2
+redis.call("xadd", streamKey, "*", "userId", userId, "voucherId", voucherId, "id", orderId);
 
 return 0
 
@@ -0,0 +1,10 @@
+-- 租约模式的秒杀，库存已经在本地扣过了，这里只判断一人一单
+-- KEYS[1] 订单key，保存下过单的用户id（不分段是优惠券的订单key，分段是用户所属分段的订单key）
+-- ARGV[1] 用户id
+-- 订单消息的stream在其他槽，不在脚本中XADD，由调用方发送
+if (redis.call('sismember', KEYS[1], ARGV[1]) == 1) then
+    -- 重复下单，返回2，调用方把本地扣的库存加回去
+    return 2
+end
+redis.call('sadd', KEYS[1], ARGV[1])
+return 0
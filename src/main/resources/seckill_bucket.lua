@@ -0,0 +1,27 @@
+-- 分段库存的秒杀，在用户所属的库存分段上执行
+-- KEYS[1] 分段的库存key；KEYS[2] 分段的订单key，保存的是分到这个分段的用户中下过单的用户id
+-- KEYS[3] 用户在这个分段的预占key，三个key都带{优惠券id:分段}，在集群的同一个槽
+-- ARGV[1] 用户id；ARGV[2] 预占的有效期，毫秒
+-- 订单消息的stream在其他槽，不在脚本中XADD，扣到库存之后由调用方发送
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local reserveKey = KEYS[3]
+local userId = ARGV[1]
+
+-- 1 一人一单，同一个用户永远分到同一个分段，只需要看这个分段的订单key
+-- 有预占说明这个用户的另一个请求正在其他分段扣库存
+if (redis.call('sismember', orderKey, userId) == 1 or redis.call('exists', reserveKey) == 1) then
+    return 2
+end
+
+-- 2 这个分段还有库存，扣库存并保存用户
+if (tonumber(redis.call('get', stockKey) or '0') > 0) then
+    redis.call('incrby', stockKey, -1)
+    redis.call('sadd', orderKey, userId)
+    return 0
+end
+
+-- 3 这个分段没有库存了，预占一人一单的资格，返回3，由调用方去其他分段扣库存
+-- 预占有过期时间，调用方中途挂了也不会一直占着
+redis.call('set', reserveKey, '1', 'PX', ARGV[2])
+return 3
@@ -0,0 +1,9 @@
+-- 分段库存的秒杀，在其他分段扣到库存之后，把用户所属分段的预占转成订单
+-- KEYS[1] 用户所属分段的订单key；KEYS[2] 用户在这个分段的预占key
+-- ARGV[1] 用户id
+redis.call('del', KEYS[2])
+-- 预占过期之后这个用户的另一个请求已经下过单了，返回2，调用方把扣的库存加回去
+if (redis.call('sadd', KEYS[1], ARGV[1]) == 0) then
+    return 2
+end
+return 0
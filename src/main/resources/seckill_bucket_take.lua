@@ -0,0 +1,11 @@
+-- 分段库存的秒杀，用户所属的分段没有库存时，到其他分段扣库存
+-- 一人一单已经在用户所属的分段上判断并预占过了（seckill_bucket.lua）
+-- KEYS[1] 分段的库存key
+local stockKey = KEYS[1]
+
+if (tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    return 1
+end
+
+redis.call('incrby', stockKey, -1)
+return 0
@@ -0,0 +1,9 @@
+-- 秒杀订单转入死信之后的补偿：放掉一人一单的资格，库存加回去
+-- KEYS[1] 库存key；KEYS[2] 订单key（不分段是优惠券的订单key，分段是用户所属分段的订单key，和KEYS[1]在同一个分段）
+-- ARGV[1] 用户id
+-- 用户不在订单key中说明已经补偿过了，不再加库存，同一条死信补偿多次也只加一次
+if (redis.call('srem', KEYS[2], ARGV[1]) == 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], 1)
+return 1
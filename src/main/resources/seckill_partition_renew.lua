@@ -0,0 +1,7 @@
+-- 秒杀订单分区租约续期，只有租约还是自己的才续期
+-- KEYS[1] 分区租约的key；ARGV[1] 消费者名字；ARGV[2] 租约有效期，毫秒
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+-- 租约已经过期，可能被其他消费者拿走了
+return 0
@@ -0,0 +1,10 @@
+-- 实例从redis的库存中租一块库存到本地
+-- KEYS[1] 库存key（不分段的库存key或者一个分段的库存key）；ARGV[1] 最多租多少
+-- 返回实际租到的数量，没有库存返回0
+local stock = tonumber(redis.call('get', KEYS[1]) or '0')
+if (stock <= 0) then
+    return 0
+end
+local taken = math.min(stock, tonumber(ARGV[1]))
+redis.call('incrby', KEYS[1], -taken)
+return taken
@@ -0,0 +1,4 @@
+-- 裁剪秒杀订单的stream，删除id小于ARGV[1]的消息（都已经确认过了）
+-- KEYS[1] 分区的stream；ARGV[1] 最小保留的id
+-- MINID需要redis 6.2，~ 表示按节点整块删除，可能少删一些，但是很快
+return redis.call('xtrim', KEYS[1], 'MINID', '~', ARGV[1])
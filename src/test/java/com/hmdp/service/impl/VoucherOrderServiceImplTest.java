@@ -0,0 +1,75 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VoucherOrderServiceImplTest {
+
+    private final VoucherOrderServiceImpl service = new VoucherOrderServiceImpl();
+
+    private static VoucherOrder order(long id, long userId, long voucherId) {
+        return new VoucherOrder().setId(id).setUserId(userId).setVoucherId(voucherId);
+    }
+
+    @Test
+    public void dedupeSkipsExistingOrders() {
+        Set<String> existing = new HashSet<>(Collections.singletonList("1:10"));
+        List<VoucherOrder> toSave = service.dedupe(Arrays.asList(order(1, 1, 10), order(2, 2, 10), order(3, 1, 11)), existing);
+        assertEquals(Arrays.asList(order(2, 2, 10), order(3, 1, 11)), toSave);
+    }
+
+    @Test
+    public void dedupeSkipsDuplicatesWithinBatch() {
+        // 同一条消息重复投递，或者同一个用户同一个优惠券的两条消息，只保留第一条
+        List<VoucherOrder> toSave = service.dedupe(
+                Arrays.asList(order(1, 1, 10), order(1, 1, 10), order(2, 1, 10), order(3, 2, 10)), new HashSet<>());
+        assertEquals(Arrays.asList(order(1, 1, 10), order(3, 2, 10)), toSave);
+    }
+
+    @Test
+    public void countsOrdersPerVoucher() {
+        Map<Long, Integer> counts = service.countByVoucher(
+                Arrays.asList(order(1, 1, 10), order(2, 2, 10), order(3, 3, 11), order(4, 4, 10)));
+        Map<Long, Integer> expected = new HashMap<>();
+        expected.put(10L, 3);
+        expected.put(11L, 1);
+        assertEquals(expected, counts);
+    }
+
+    @Test
+    public void limitKeepsAllWhenFullyDecremented() {
+        List<VoucherOrder> orders = Arrays.asList(order(1, 1, 10), order(2, 2, 11), order(3, 3, 10));
+        Map<Long, Integer> allowed = service.countByVoucher(orders);
+        assertEquals(orders, service.limitByVoucher(orders, allowed));
+    }
+
+    @Test
+    public void limitKeepsOnlyDecrementedOrdersInMessageOrder() {
+        List<VoucherOrder> orders = Arrays.asList(order(1, 1, 10), order(2, 2, 11), order(3, 3, 10), order(4, 4, 10));
+        Map<Long, Integer> allowed = new HashMap<>();
+        allowed.put(10L, 2);
+        allowed.put(11L, 1);
+        assertEquals(Arrays.asList(order(1, 1, 10), order(2, 2, 11), order(3, 3, 10)), service.limitByVoucher(orders, allowed));
+    }
+
+    @Test
+    public void limitDropsVoucherWithoutStock() {
+        List<VoucherOrder> orders = Arrays.asList(order(1, 1, 10), order(2, 2, 11));
+        Map<Long, Integer> allowed = new HashMap<>();
+        allowed.put(10L, 0);
+        allowed.put(11L, 1);
+        assertEquals(Collections.singletonList(order(2, 2, 11)), service.limitByVoucher(orders, allowed));
+        assertTrue(service.limitByVoucher(orders, new HashMap<>()).isEmpty());
+    }
+}
@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    @Data
+    public static class Bean {
+        private Long id;
+        private String name;
+        private Integer count;
+        private double score;
+        private Boolean open;
+        private LocalDateTime updateTime;
+        private LocalDate day;
+        private BigDecimal price;
+        private List<String> tags;
+    }
+
+    @Data
+    public static class OtherBean {
+        private Long id;
+    }
+
+    private static Bean bean() {
+        Bean bean = new Bean();
+        bean.setId(1L);
+        bean.setName("茶餐厅");
+        bean.setCount(3);
+        bean.setScore(4.5);
+        bean.setOpen(true);
+        bean.setUpdateTime(LocalDateTime.of(2022, 5, 8, 17, 23, 1, 123456789));
+        bean.setDay(LocalDate.of(2022, 5, 8));
+        bean.setPrice(new BigDecimal("12.30"));
+        bean.setTags(Arrays.asList("a", "b"));
+        return bean;
+    }
+
+    @Test
+    public void roundTripsAllFieldTypes() {
+        byte[] bytes = codec.encode(bean());
+        assertTrue(BinaryCacheCodec.isBinary(bytes));
+        assertEquals(bean(), codec.decode(bytes, Bean.class));
+    }
+
+    @Test
+    public void roundTripsNullFields() {
+        Bean bean = new Bean();
+        bean.setId(2L);
+        assertEquals(bean, codec.decode(codec.encode(bean), Bean.class));
+    }
+
+    @Test
+    public void decodesFromByteBuffer() {
+        byte[] bytes = codec.encode(bean());
+        assertEquals(bean(), codec.decode(ByteBuffer.wrap(bytes), Bean.class));
+    }
+
+    @Test
+    public void changedSchemaDecodesAsMiss() {
+        byte[] bytes = codec.encode(bean());
+        assertNull(codec.decode(bytes, OtherBean.class));
+    }
+
+    @Test
+    public void roundTripsLogical() {
+        RedisData<Bean> redisData = new RedisData<>();
+        redisData.setData(bean());
+        redisData.setExpireTime(LocalDateTime.of(2022, 5, 8, 18, 0, 0));
+        redisData.setBuildMillis(35L);
+        RedisData<Bean> decoded = codec.decodeLogical(codec.encodeLogical(redisData), Bean.class);
+        assertEquals(bean(), decoded.getData());
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(Long.valueOf(35), decoded.getBuildMillis());
+    }
+
+    @Test
+    public void logicalWithoutDataOrBuildMillis() {
+        RedisData<Bean> redisData = new RedisData<>();
+        redisData.setExpireTime(LocalDateTime.of(2022, 5, 8, 18, 0, 0));
+        RedisData<Bean> decoded = codec.decodeLogical(codec.encodeLogical(redisData), Bean.class);
+        assertNull(decoded.getData());
+        assertNull(decoded.getBuildMillis());
+    }
+
+    @Test
+    public void kindMismatchDecodesAsMiss() {
+        RedisData<Bean> redisData = new RedisData<>();
+        redisData.setData(bean());
+        redisData.setExpireTime(LocalDateTime.now());
+        assertNull(codec.decode(codec.encodeLogical(redisData), Bean.class));
+        assertNull(codec.decodeLogical(codec.encode(bean()), Bean.class));
+    }
+
+    @Test
+    public void jsonIsNotBinary() {
+        assertFalse(BinaryCacheCodec.isBinary("{\"id\":1}".getBytes()));
+        assertFalse(BinaryCacheCodec.isBinary(new byte[]{BinaryCacheCodec.MAGIC}));
+    }
+
+    @Test
+    public void encodingIsStable() {
+        assertArrayEquals(codec.encode(bean()), new BinaryCacheCodec().encode(bean()));
+    }
+}
@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+    @Test
+    public void containsEverythingPut() {
+        BloomFilter bloomFilter = new BloomFilter(10000, 0.01);
+        for (long id = 1; id <= 10000; id++) {
+            bloomFilter.put(id);
+        }
+        for (long id = 1; id <= 10000; id++) {
+            assertTrue(bloomFilter.mightContain(id));
+        }
+    }
+
+    @Test
+    public void emptyFilterContainsNothing() {
+        BloomFilter bloomFilter = new BloomFilter(1000, 0.01);
+        for (long id = 1; id <= 1000; id++) {
+            assertFalse(bloomFilter.mightContain(id));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateIsNearFpp() {
+        BloomFilter bloomFilter = new BloomFilter(10000, 0.01);
+        for (long id = 1; id <= 10000; id++) {
+            bloomFilter.put(id);
+        }
+        int falsePositives = 0;
+        for (long id = 10001; id <= 110000; id++) {
+            if (bloomFilter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        // 期望1%，留一些余量
+        assertTrue("误判" + falsePositives + "次", falsePositives < 2000);
+    }
+
+    @Test
+    public void sameStringFormIsSameElement() {
+        // CacheClient按 id.toString() 判断，Long和String形式的id是同一个元素
+        BloomFilter bloomFilter = new BloomFilter(100, 0.01);
+        bloomFilter.put(42L);
+        assertTrue(bloomFilter.mightContain("42"));
+    }
+
+    @Test
+    public void tinyExpectedInsertionsStillWorks() {
+        BloomFilter bloomFilter = new BloomFilter(0, 0.5);
+        bloomFilter.put("a");
+        assertTrue(bloomFilter.mightContain("a"));
+    }
+}
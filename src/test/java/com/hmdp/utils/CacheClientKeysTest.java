@@ -0,0 +1,18 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CacheClientKeysTest {
+
+    @Test
+    public void versionAndLockKeysShareTheCacheKeySlot() {
+        for (String key : new String[]{RedisConstants.CACHE_SHOP_KEY + 1, RedisConstants.CACHE_SHOP_KEY + 123456, "cache:blog:7"}) {
+            int slot = SlotHash.getSlot(key);
+            assertEquals(slot, SlotHash.getSlot(CacheClient.versionKey(key)));
+            assertEquals(slot, SlotHash.getSlot(CacheClient.lockKey(key)));
+        }
+    }
+}
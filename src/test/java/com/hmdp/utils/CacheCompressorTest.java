@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheCompressorTest {
+
+    private static byte[] repetitive() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"103茶餐厅\",\"area\":\"大关\"}");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTrips() {
+        byte[] original = repetitive();
+        byte[] compressed = CacheCompressor.compress(original);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < original.length);
+        assertTrue(CacheCompressor.isCompressed(compressed));
+        assertArrayEquals(original, CacheCompressor.decompress(compressed));
+    }
+
+    @Test
+    public void incompressibleReturnsNull() {
+        assertNull(CacheCompressor.compress("{\"id\":1}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void plainValuesAreNotCompressed() {
+        assertFalse(CacheCompressor.isCompressed("{\"id\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(CacheCompressor.isCompressed(null));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void hugeLengthIsRejectedBeforeAllocating() {
+        byte[] compressed = CacheCompressor.compress(repetitive());
+        ByteBuffer.wrap(compressed, 1, 4).putInt(Integer.MAX_VALUE);
+        CacheCompressor.decompress(compressed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void negativeLengthIsRejected() {
+        byte[] compressed = CacheCompressor.compress(repetitive());
+        ByteBuffer.wrap(compressed, 1, 4).putInt(-1);
+        CacheCompressor.decompress(compressed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shorterLengthIsRejected() {
+        byte[] compressed = CacheCompressor.compress(repetitive());
+        ByteBuffer.wrap(compressed, 1, 4).putInt(repetitive().length - 1);
+        CacheCompressor.decompress(compressed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void longerLengthIsRejected() {
+        byte[] compressed = CacheCompressor.compress(repetitive());
+        ByteBuffer.wrap(compressed, 1, 4).putInt(repetitive().length + 1);
+        CacheCompressor.decompress(compressed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void truncatedDataIsRejected() {
+        byte[] compressed = CacheCompressor.compress(repetitive());
+        CacheCompressor.decompress(Arrays.copyOf(compressed, compressed.length - 4));
+    }
+}
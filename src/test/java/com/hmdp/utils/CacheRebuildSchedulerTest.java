@@ -0,0 +1,138 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CacheRebuildSchedulerTest {
+
+    private static final String PREFIX = "cache:shop:";
+
+    private CacheRebuildScheduler scheduler;
+
+    private CacheRebuildScheduler scheduler(int threads, int queueCapacity) {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.getRebuild().setThreads(threads);
+        cacheProperties.getRebuild().setQueueCapacity(queueCapacity);
+        cacheProperties.getRebuild().setDrainSeconds(5);
+        scheduler = new CacheRebuildScheduler(cacheProperties, new CacheMetrics(new SimpleMeterRegistry()));
+        return scheduler;
+    }
+
+    @After
+    public void tearDown() {
+        if (null != scheduler) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentSubmitsOfOneKeyRunOnce() throws Exception {
+        CacheRebuildScheduler scheduler = scheduler(2, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(callers.submit(() -> {
+                start.await();
+                return scheduler.submit(PREFIX, PREFIX + 1, () -> {
+                    runs.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }));
+        }
+        start.countDown();
+        int accepted = 0;
+        for (Future<Boolean> result : results) {
+            accepted += result.get(5, TimeUnit.SECONDS) ? 1 : 0;
+        }
+        assertEquals(1, accepted);
+        assertTrue(scheduler.touch(PREFIX + 1));
+        release.countDown();
+        callers.shutdown();
+        scheduler.shutdown();
+        assertEquals(1, runs.get());
+        assertFalse(scheduler.touch(PREFIX + 1));
+    }
+
+    @Test
+    public void keyCanBeResubmittedAfterRebuild() throws Exception {
+        CacheRebuildScheduler scheduler = scheduler(1, 100);
+        CountDownLatch done = new CountDownLatch(2);
+        assertTrue(scheduler.submit(PREFIX, PREFIX + 1, done::countDown));
+        // 等第一个任务执行完，pending中的登记才会删掉
+        while (scheduler.touch(PREFIX + 1)) {
+            Thread.sleep(1);
+        }
+        assertTrue(scheduler.submit(PREFIX, PREFIX + 1, done::countDown));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        CacheRebuildScheduler scheduler = scheduler(1, 1);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(scheduler.submit(PREFIX, PREFIX + 1, () -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.submit(PREFIX, PREFIX + 2, () -> { }));
+        assertFalse(scheduler.submit(PREFIX, PREFIX + 3, () -> { }));
+        // 被拒绝的key没有留下登记，下次还能提交
+        assertFalse(scheduler.touch(PREFIX + 3));
+        release.countDown();
+    }
+
+    @Test
+    public void batchSkipsKeysAlreadyPending() throws Exception {
+        CacheRebuildScheduler scheduler = scheduler(1, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        assertTrue(scheduler.submit(PREFIX, PREFIX + 1, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        List<String> keys = new ArrayList<>();
+        keys.add(PREFIX + 1);
+        assertFalse(scheduler.submit(PREFIX, keys, () -> { }));
+        keys.add(PREFIX + 2);
+        assertTrue(scheduler.submit(PREFIX, keys, () -> { }));
+        release.countDown();
+    }
+
+    @Test
+    public void rejectsAfterShutdown() {
+        CacheRebuildScheduler scheduler = scheduler(1, 100);
+        scheduler.shutdown();
+        assertFalse(scheduler.submit(PREFIX, PREFIX + 1, () -> { }));
+        assertFalse(scheduler.touch(PREFIX + 1));
+    }
+}
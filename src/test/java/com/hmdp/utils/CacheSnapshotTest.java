@@ -0,0 +1,130 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import lombok.Data;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class CacheSnapshotTest {
+
+    private static final String SHOP = "cache:shop:";
+    private static final String BLOG = "cache:blog:";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    @Data
+    public static class Bean {
+        private Long id;
+        private String name;
+    }
+
+    private static Bean bean(long id, String name) {
+        Bean bean = new Bean();
+        bean.setId(id);
+        bean.setName(name);
+        return bean;
+    }
+
+    private CacheSnapshot.Entry entry(String prefix, long id, String name, long version) {
+        return new CacheSnapshot.Entry(prefix, prefix + id, Bean.class.getName(), version, codec.encode(bean(id, name)));
+    }
+
+    @Test
+    public void roundTripsEntries() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("shop.snapshot");
+        long before = System.currentTimeMillis();
+        CacheSnapshot.write(path, Arrays.asList(entry(SHOP, 1, "茶餐厅", 3), entry(SHOP, 2, "火锅", 0), entry(BLOG, 1, "探店", 7)));
+
+        CacheSnapshot snapshot = CacheSnapshot.open(path);
+        assertEquals(3, snapshot.getRecords().size());
+        assertTrue(snapshot.getCreatedAt() >= before);
+
+        CacheSnapshot.Record record = snapshot.get(SHOP + 1);
+        assertEquals(SHOP, record.getPrefix());
+        assertEquals(Bean.class.getName(), record.getType());
+        assertEquals(3, record.getVersion());
+        assertEquals(bean(1, "茶餐厅"), codec.decode(record.getValue(), Bean.class));
+        assertEquals(bean(1, "探店"), codec.decode(snapshot.get(BLOG + 1).getValue(), Bean.class));
+        assertEquals(0, snapshot.get(SHOP + 2).getVersion());
+        assertNull(snapshot.get(SHOP + 3));
+    }
+
+    @Test
+    public void valueCanBeDecodedRepeatedly() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("shop.snapshot");
+        CacheSnapshot.write(path, Collections.singletonList(entry(SHOP, 1, "茶餐厅", 1)));
+        CacheSnapshot.Record record = CacheSnapshot.open(path).get(SHOP + 1);
+        assertEquals(codec.decode(record.getValue(), Bean.class), codec.decode(record.getValue(), Bean.class));
+    }
+
+    @Test
+    public void rewriteReplacesPreviousSnapshot() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("shop.snapshot");
+        CacheSnapshot.write(path, Arrays.asList(entry(SHOP, 1, "茶餐厅", 1), entry(SHOP, 2, "火锅", 1)));
+        CacheSnapshot.write(path, Collections.singletonList(entry(SHOP, 1, "新茶餐厅", 2)));
+
+        CacheSnapshot snapshot = CacheSnapshot.open(path);
+        assertEquals(1, snapshot.getRecords().size());
+        assertEquals(2, snapshot.get(SHOP + 1).getVersion());
+        assertNull(snapshot.get(SHOP + 2));
+        assertFalse(Files.exists(path.resolveSibling("shop.snapshot.tmp")));
+    }
+
+    @Test
+    public void emptySnapshot() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("empty.snapshot");
+        CacheSnapshot.write(path, Collections.emptyList());
+        assertTrue(CacheSnapshot.open(path).getRecords().isEmpty());
+    }
+
+    @Test
+    public void missingFileIsNull() throws IOException {
+        assertNull(CacheSnapshot.open(folder.getRoot().toPath().resolve("missing.snapshot")));
+    }
+
+    @Test
+    public void foreignFileIsNull() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("foreign.snapshot");
+        Files.write(path, "not a snapshot file".getBytes(StandardCharsets.UTF_8));
+        assertNull(CacheSnapshot.open(path));
+    }
+
+    @Test
+    public void managerDecodesOnlyAllowedTypes() throws IOException {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("茶餐厅");
+        String key = RedisConstants.CACHE_SHOP_KEY;
+        Path path = folder.getRoot().toPath().resolve("local.snapshot");
+        CacheSnapshot.write(path, Arrays.asList(
+                new CacheSnapshot.Entry(key, key + 1, Shop.class.getName(), 1, codec.encode(shop)),
+                new CacheSnapshot.Entry(key, key + 2, Bean.class.getName(), 1, codec.encode(bean(2, "火锅"))),
+                new CacheSnapshot.Entry(BLOG, BLOG + 1, Shop.class.getName(), 1, codec.encode(shop))));
+        CacheSnapshot snapshot = CacheSnapshot.open(path);
+        CacheSnapshotManager manager = new CacheSnapshotManager(mock(CacheClient.class), new CacheProperties());
+
+        Shop decoded = manager.decode(snapshot.get(key + 1));
+        assertEquals(shop.getName(), decoded.getName());
+        // 登记的前缀下不是登记的类、没有登记的前缀都不解码
+        assertNull(manager.decode(snapshot.get(key + 2)));
+        assertNull(manager.decode(snapshot.get(BLOG + 1)));
+    }
+}
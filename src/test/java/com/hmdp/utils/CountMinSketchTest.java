@@ -0,0 +1,79 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountMinSketchTest {
+
+    @Test
+    public void countsSingleKeyExactly() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i, sketch.add("shop:1"));
+        }
+        assertEquals(100, sketch.estimate("shop:1"));
+        assertEquals(0, sketch.estimate("shop:2"));
+    }
+
+    @Test
+    public void neverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(4, 64);
+        int[] counts = new int[500];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = i % 7 + 1;
+            for (int j = 0; j < counts[i]; j++) {
+                sketch.add("shop:" + i);
+            }
+        }
+        for (int i = 0; i < counts.length; i++) {
+            assertTrue(sketch.estimate("shop:" + i) >= counts[i]);
+        }
+    }
+
+    @Test
+    public void hotKeyStandsOutFromNoise() {
+        CountMinSketch sketch = new CountMinSketch(4, 8192);
+        for (int i = 0; i < 10000; i++) {
+            sketch.add("shop:" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("shop:hot");
+        }
+        int estimate = sketch.estimate("shop:hot");
+        assertTrue(estimate >= 1000 && estimate < 1010);
+    }
+
+    @Test
+    public void decayHalvesCounts() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 101; i++) {
+            sketch.add("shop:1");
+        }
+        sketch.decay();
+        assertEquals(50, sketch.estimate("shop:1"));
+        sketch.decay();
+        assertEquals(25, sketch.estimate("shop:1"));
+    }
+
+    @Test
+    public void widthIsRoundedUpToPowerOfTwo() {
+        // 宽度不是2的幂也能正常计数
+        CountMinSketch sketch = new CountMinSketch(0, 100);
+        sketch.add("shop:1");
+        sketch.add("shop:1");
+        assertEquals(2, sketch.estimate("shop:1"));
+    }
+
+    @Test
+    public void roundWidthKeepsPowersOfTwo() {
+        assertEquals(16, CountMinSketch.roundWidth(0));
+        assertEquals(16, CountMinSketch.roundWidth(16));
+        assertEquals(32, CountMinSketch.roundWidth(17));
+        assertEquals(32, CountMinSketch.roundWidth(32));
+        assertEquals(64, CountMinSketch.roundWidth(33));
+        assertEquals(128, CountMinSketch.roundWidth(100));
+        assertEquals(1024, CountMinSketch.roundWidth(1024));
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalCacheTest {
+
+    private static final String PREFIX = "cache:shop:";
+
+    private static LocalCache cache(int maxSize, long ttlSeconds) {
+        CacheProperties.LocalSpec spec = new CacheProperties.LocalSpec();
+        spec.setPrefix(PREFIX);
+        spec.setMaxSize(maxSize);
+        spec.setTtlSeconds(ttlSeconds);
+        return new LocalCache(Collections.singletonList(spec));
+    }
+
+    @Test
+    public void getReturnsPutValue() {
+        LocalCache cache = cache(10, 60);
+        cache.put(PREFIX, PREFIX + 1, "shop-1");
+        assertEquals("shop-1", cache.get(PREFIX, PREFIX + 1));
+        assertNull(cache.get(PREFIX, PREFIX + 2));
+    }
+
+    @Test
+    public void unknownPrefixIsIgnored() {
+        LocalCache cache = cache(10, 60);
+        cache.put("cache:blog:", "cache:blog:1", "blog");
+        assertNull(cache.get("cache:blog:", "cache:blog:1"));
+        assertFalse(cache.isEnabled("cache:blog:"));
+    }
+
+    @Test
+    public void expiredEntryIsRemovedOnRead() {
+        LocalCache cache = cache(10, 60);
+        cache.put(PREFIX, PREFIX + 1, "shop-1", System.currentTimeMillis() - 1);
+        assertNull(cache.get(PREFIX, PREFIX + 1));
+        assertEquals(0, cache.size(PREFIX));
+    }
+
+    @Test
+    public void expireAtIsCappedBySegmentTtl() {
+        LocalCache cache = cache(10, 0);
+        cache.put(PREFIX, PREFIX + 1, "shop-1", Long.MAX_VALUE);
+        assertNull(cache.get(PREFIX, PREFIX + 1));
+    }
+
+    @Test
+    public void evictsLeastRecentlyAccessedWhenFull() throws InterruptedException {
+        LocalCache cache = cache(10, 60);
+        for (int i = 0; i < 10; i++) {
+            cache.put(PREFIX, PREFIX + i, i);
+        }
+        // 访问时间的精度是1ms，隔开一点再访问0
+        Thread.sleep(5);
+        assertEquals(0, (int) cache.get(PREFIX, PREFIX + 0));
+        cache.put(PREFIX, PREFIX + 10, 10);
+        assertTrue(cache.size(PREFIX) <= 10);
+        assertEquals(0, (int) cache.get(PREFIX, PREFIX + 0));
+        assertEquals(10, (int) cache.get(PREFIX, PREFIX + 10));
+        assertNull(cache.get(PREFIX, PREFIX + 1));
+    }
+
+    @Test
+    public void evictRemovesByFullKey() {
+        LocalCache cache = cache(10, 60);
+        cache.put(PREFIX, PREFIX + 1, "shop-1");
+        cache.evict(PREFIX + 1);
+        assertNull(cache.get(PREFIX, PREFIX + 1));
+    }
+
+    @Test
+    public void entriesSkipExpired() {
+        LocalCache cache = cache(10, 60);
+        cache.put(PREFIX, PREFIX + 1, "shop-1");
+        cache.put(PREFIX, PREFIX + 2, "shop-2", System.currentTimeMillis() - 1);
+        assertEquals(Collections.singletonMap(PREFIX + 1, "shop-1"), cache.entries(PREFIX));
+    }
+}
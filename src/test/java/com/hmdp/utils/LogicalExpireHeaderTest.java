@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LogicalExpireHeaderTest {
+
+    private static final byte[] PAYLOAD = "{\"data\":{\"id\":1}}".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void wrapAndUnwrap() {
+        byte[] wrapped = LogicalExpireHeader.wrap(PAYLOAD, 1652000000000L, 35);
+        assertTrue(LogicalExpireHeader.hasHeader(wrapped));
+        assertEquals(17 + PAYLOAD.length, wrapped.length);
+        assertArrayEquals(PAYLOAD, LogicalExpireHeader.unwrap(wrapped));
+    }
+
+    @Test
+    public void headerIsBigEndianForLua() {
+        // cache_logical_get.lua按大端读取第2~9字节和第10~17字节
+        ByteBuffer buffer = ByteBuffer.wrap(LogicalExpireHeader.wrap(PAYLOAD, 1652000000000L, 35));
+        assertEquals(LogicalExpireHeader.MAGIC, buffer.get());
+        assertEquals(1652000000000L, buffer.getLong());
+        assertEquals(35L, buffer.getLong());
+    }
+
+    @Test
+    public void negativeBuildMillisIsStoredAsZero() {
+        ByteBuffer buffer = ByteBuffer.wrap(LogicalExpireHeader.wrap(PAYLOAD, 1L, -5));
+        buffer.position(9);
+        assertEquals(0L, buffer.getLong());
+    }
+
+    @Test
+    public void dataWithoutHeaderIsReturnedAsIs() {
+        assertFalse(LogicalExpireHeader.hasHeader(PAYLOAD));
+        assertSame(PAYLOAD, LogicalExpireHeader.unwrap(PAYLOAD));
+        assertFalse(LogicalExpireHeader.hasHeader(null));
+        assertFalse(LogicalExpireHeader.hasHeader(new byte[0]));
+    }
+
+    @Test
+    public void magicDoesNotCollideWithOtherFormats() {
+        assertFalse(LogicalExpireHeader.MAGIC == BinaryCacheCodec.MAGIC);
+        byte[] compressed = CacheCompressor.compress(new byte[1024]);
+        assertFalse(LogicalExpireHeader.hasHeader(compressed));
+        assertFalse(LogicalExpireHeader.hasHeader(new BinaryCacheCodec().encode(new RedisData<>())));
+    }
+}
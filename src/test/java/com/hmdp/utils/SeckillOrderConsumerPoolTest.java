@@ -0,0 +1,44 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SeckillOrderConsumerPoolTest {
+
+    @Test
+    public void streamOfUsesUserIdModPartitions() {
+        assertEquals(SeckillOrderConsumerPool.partitionKey(3), SeckillOrderConsumerPool.streamOf(11L, 4));
+        assertEquals(SeckillOrderConsumerPool.partitionKey(0), SeckillOrderConsumerPool.streamOf(8L, 4));
+    }
+
+    @Test
+    public void partitionOfParsesPartitionKey() {
+        for (int p = 0; p < 16; p++) {
+            assertEquals(Integer.valueOf(p), SeckillOrderConsumerPool.partitionOf(SeckillOrderConsumerPool.partitionKey(p)));
+        }
+        assertNull(SeckillOrderConsumerPool.partitionOf(RedisConstants.SECKILL_ORDER_STREAM));
+        assertNull(SeckillOrderConsumerPool.partitionOf(RedisConstants.SECKILL_ORDER_STREAM + ":x"));
+        assertNull(SeckillOrderConsumerPool.partitionOf("other:1"));
+        assertNull(SeckillOrderConsumerPool.partitionOf(null));
+    }
+
+    @Test
+    public void streamOffsetsKeepsEveryStream() {
+        Map<String, ReadOffset> readOffsets = new LinkedHashMap<>();
+        readOffsets.put(SeckillOrderConsumerPool.partitionKey(0), ReadOffset.lastConsumed());
+        readOffsets.put(SeckillOrderConsumerPool.partitionKey(1), ReadOffset.from("0"));
+        StreamOffset<String>[] offsets = SeckillOrderConsumerPool.streamOffsets(readOffsets);
+        assertEquals(2, offsets.length);
+        assertEquals(SeckillOrderConsumerPool.partitionKey(0), offsets[0].getKey());
+        assertEquals(ReadOffset.lastConsumed(), offsets[0].getOffset());
+        assertEquals(SeckillOrderConsumerPool.partitionKey(1), offsets[1].getKey());
+        assertEquals(ReadOffset.from("0"), offsets[1].getOffset());
+    }
+}
@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.connection.stream.StringRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SeckillOrderStreamManagerTest {
+
+    private static final String STREAM = SeckillOrderConsumerPool.partitionKey(0);
+    private static final String OWNER = "host:8081-1";
+    private static final RecordId ID = RecordId.of("1-0");
+
+    private final SeckillOrderStreamManager manager = new SeckillOrderStreamManager();
+    private final SeckillProperties seckillProperties = new SeckillProperties();
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+    private final StringRedisConnection connection = mock(StringRedisConnection.class);
+    private final SeckillStockBuckets seckillStockBuckets = mock(SeckillStockBuckets.class);
+    @SuppressWarnings("unchecked")
+    private final StreamOperations<String, Object, Object> streamOperations = mock(StreamOperations.class);
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        seckillProperties.getStream().setMaxDeliveries(5);
+        seckillProperties.getStream().setMinIdleMillis(60000);
+        ReflectionTestUtils.setField(manager, "seckillProperties", seckillProperties);
+        ReflectionTestUtils.setField(manager, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(manager, "seckillStockBuckets", seckillStockBuckets);
+
+        // 数据库中没有这个订单
+        IVoucherOrderService voucherOrderService = mock(IVoucherOrderService.class);
+        QueryChainWrapper<VoucherOrder> query = mock(QueryChainWrapper.class, RETURNS_SELF);
+        when(query.count()).thenReturn(0);
+        when(voucherOrderService.query()).thenReturn(query);
+        ReflectionTestUtils.setField(manager, "voucherOrderService", voucherOrderService);
+
+        ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+        when(valueOperations.get(RedisConstants.SECKILL_PARTITION_LOCK_KEY + 0)).thenReturn(OWNER);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(stringRedisTemplate.opsForStream()).thenReturn(streamOperations);
+        when(stringRedisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(invocation -> ((RedisCallback<?>) invocation.getArgument(0)).doInRedis(connection));
+
+        Map<String, String> fields = new HashMap<>();
+        fields.put("userId", "1");
+        fields.put("voucherId", "10");
+        fields.put("id", "100");
+        StringRecord record = StreamRecords.newRecord().in(STREAM).withId(ID).ofStrings(fields);
+        when(connection.xClaim(eq(STREAM), eq(RedisConstants.SECKILL_ORDER_GROUP), eq("dead-letter"), any(Duration.class), eq(ID)))
+                .thenReturn(Collections.singletonList(record));
+    }
+
+    private void pending(long idleMillis, long deliveries) {
+        PendingMessage message = new PendingMessage(ID, Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, OWNER),
+                Duration.ofMillis(idleMillis), deliveries);
+        when(streamOperations.pending(eq(STREAM), eq(RedisConstants.SECKILL_ORDER_GROUP), any(Range.class), anyLong()))
+                .thenReturn(new PendingMessages(RedisConstants.SECKILL_ORDER_GROUP, Collections.singletonList(message)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void messageStillBeingProcessedIsNotDeadLettered() {
+        // 第5次投递刚刚开始，消费者还在处理，不能转入死信并补偿
+        pending(5, 5);
+        assertEquals(0, manager.reclaim(0, STREAM));
+        verify(stringRedisTemplate, never()).execute(any(RedisCallback.class));
+        verify(streamOperations, never()).acknowledge(any(String.class), any(String.class), any(RecordId[].class));
+        verify(seckillStockBuckets, never()).compensate(any(), any());
+    }
+
+    @Test
+    public void idleMessageOverMaxDeliveriesIsDeadLetteredAndCompensated() {
+        pending(61000, 5);
+        assertEquals(1, manager.reclaim(0, STREAM));
+        // claim的最小空闲时间是minIdleMillis，不是刚才看到的空闲时间
+        verify(connection).xClaim(STREAM, RedisConstants.SECKILL_ORDER_GROUP, "dead-letter", Duration.ofMillis(60000), ID);
+        verify(streamOperations).acknowledge(STREAM, RedisConstants.SECKILL_ORDER_GROUP, ID);
+        verify(seckillStockBuckets).compensate(10L, 1L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void idleMessageUnderMaxDeliveriesStaysWithOwner() {
+        pending(61000, 2);
+        assertEquals(0, manager.reclaim(0, STREAM));
+        verify(stringRedisTemplate, never()).execute(any(RedisCallback.class));
+        verify(seckillStockBuckets, never()).compensate(any(), any());
+    }
+}
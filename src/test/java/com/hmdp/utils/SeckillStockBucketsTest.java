@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeckillStockBucketsTest {
+
+    @Test
+    public void splitsEvenly() {
+        assertArrayEquals(new int[]{25, 25, 25, 25}, SeckillStockBuckets.split(100, 4));
+    }
+
+    @Test
+    public void remainderGoesToFirstBuckets() {
+        int[] stocks = SeckillStockBuckets.split(10, 4);
+        assertArrayEquals(new int[]{3, 3, 2, 2}, stocks);
+        assertEquals(10, Arrays.stream(stocks).sum());
+    }
+
+    @Test
+    public void bucketsNeverExceedStock() {
+        // 库存比分段少时，每个分段至少有一个库存
+        assertArrayEquals(new int[]{1, 1, 1}, SeckillStockBuckets.split(3, 8));
+        assertArrayEquals(new int[]{0}, SeckillStockBuckets.split(0, 8));
+        assertArrayEquals(new int[]{7}, SeckillStockBuckets.split(7, 0));
+        assertArrayEquals(new int[]{7}, SeckillStockBuckets.split(7, 1));
+    }
+
+    @Test
+    public void bucketOfIsStableAndInRange() {
+        for (long userId = -20; userId <= 20; userId++) {
+            int bucket = SeckillStockBuckets.bucketOf(userId, 4);
+            assertTrue(bucket >= 0 && bucket < 4);
+            assertEquals(bucket, SeckillStockBuckets.bucketOf(userId, 4));
+        }
+        assertEquals(1, SeckillStockBuckets.bucketOf(9L, 4));
+        assertEquals(3, SeckillStockBuckets.bucketOf(-1L, 4));
+        assertEquals(0, SeckillStockBuckets.bucketOf(Long.MAX_VALUE, 1));
+    }
+
+    @Test
+    public void bucketKeysShareHashTag() {
+        // 同一个分段的库存key、订单key和预占key在集群的同一个槽
+        String tag = "{10:2}";
+        assertTrue(SeckillStockBuckets.stockKey(10L, 2).contains(tag));
+        assertTrue(SeckillStockBuckets.orderKey(10L, 2).contains(tag));
+        assertTrue(SeckillStockBuckets.reserveKey(10L, 2, 7L).contains(tag));
+        assertTrue(SeckillStockBuckets.reserveKey(10L, 2, 7L).endsWith(":7"));
+    }
+
+    @Test
+    public void soldOutExpiresAndCanBeCleared() {
+        SeckillProperties seckillProperties = new SeckillProperties();
+        SeckillStockBuckets buckets = new SeckillStockBuckets();
+        ReflectionTestUtils.setField(buckets, "seckillProperties", seckillProperties);
+
+        seckillProperties.setSoldOutRecheckMillis(60000);
+        buckets.markSoldOut(10L, 1);
+        buckets.markSoldOut(10L, 2);
+        buckets.markSoldOut(11L, 1);
+        assertTrue(buckets.isSoldOut(10L, 1));
+        assertFalse(buckets.isSoldOut(10L, 0));
+
+        // 库存加回之后，这个优惠券所有分段的记录都清掉，其他优惠券不受影响
+        buckets.clearSoldOut(10L);
+        assertFalse(buckets.isSoldOut(10L, 1));
+        assertFalse(buckets.isSoldOut(10L, 2));
+        assertTrue(buckets.isSoldOut(11L, 1));
+
+        // 超过soldOutRecheckMillis之后再去redis看
+        seckillProperties.setSoldOutRecheckMillis(0);
+        assertFalse(buckets.isSoldOut(11L, 1));
+    }
+}
@@ -0,0 +1,115 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SeckillStockLeasesTest {
+
+    private static final Long VOUCHER_ID = 10L;
+
+    private final SeckillStockLeases leases = new SeckillStockLeases();
+    private final SeckillProperties seckillProperties = new SeckillProperties();
+    private final StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+
+    @Before
+    public void setUp() {
+        seckillProperties.getLease().setBlockSize(10);
+        seckillProperties.getLease().setRefillRatio(0.2);
+        seckillProperties.getLease().setExhaustedRecheckMillis(60000);
+        ReflectionTestUtils.setField(leases, "seckillProperties", seckillProperties);
+        ReflectionTestUtils.setField(leases, "stringRedisTemplate", stringRedisTemplate);
+    }
+
+    private SeckillStockLeases.Lease lease(int buckets) {
+        return new SeckillStockLeases.Lease(VOUCHER_ID, buckets, LocalDateTime.now().plusHours(1));
+    }
+
+    // seckill_stock_lease.lua每次执行依次返回的数量
+    @SuppressWarnings("unchecked")
+    private void leaseReturns(Long first, Long... rest) {
+        when(stringRedisTemplate.execute(any(RedisScript.class), any(), any())).thenReturn(first, (Object[]) rest);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verifyLeaseCalls(int times) {
+        verify(stringRedisTemplate, times(times)).execute(any(RedisScript.class), any(), any());
+    }
+
+    @Test
+    public void refillTakesOneBlock() {
+        leaseReturns(10L);
+        SeckillStockLeases.Lease lease = lease(1);
+        assertEquals(10, leases.refill(lease));
+        verify(stringRedisTemplate).execute(any(RedisScript.class),
+                eq(Collections.singletonList(RedisConstants.SECKILL_STOCK_KEY + VOUCHER_ID)), eq("10"));
+    }
+
+    @Test
+    public void refillCollectsFromSeveralBuckets() {
+        leaseReturns(6L, 4L);
+        SeckillStockLeases.Lease lease = lease(4);
+        assertEquals(10, leases.refill(lease));
+        // 第一个分段只有6个，第二个分段只要4个，够了就不再去后面的分段
+        verifyLeaseCalls(2);
+    }
+
+    @Test
+    public void refillSkipsWhileEnoughPermitsLeft() {
+        leaseReturns(10L);
+        SeckillStockLeases.Lease lease = lease(1);
+        leases.refill(lease);
+        assertEquals(10, leases.refill(lease));
+        verifyLeaseCalls(1);
+    }
+
+    @Test
+    public void takePermitUsesLocalStockThenRefills() {
+        leaseReturns(2L, 0L);
+        SeckillStockLeases.Lease lease = lease(1);
+        // 第一次本地没有库存，同步续租到2个
+        assertTrue(leases.takePermit(lease));
+        assertTrue(leases.takePermit(lease));
+        // 用完了再续租，redis也没有了
+        assertFalse(leases.takePermit(lease));
+        verifyLeaseCalls(2);
+    }
+
+    @Test
+    public void takePermitWaitsBeforeRecheckingExhaustedStock() {
+        leaseReturns(0L);
+        SeckillStockLeases.Lease lease = lease(1);
+        assertFalse(leases.takePermit(lease));
+        // exhaustedRecheckMillis之内不再去redis看
+        assertFalse(leases.takePermit(lease));
+        assertFalse(leases.takePermit(lease));
+        verifyLeaseCalls(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void endedLeaseDoesNotRefill() {
+        SeckillStockLeases.Lease lease = lease(1);
+        ReflectionTestUtils.setField(lease, "ended", true);
+        assertEquals(0, leases.refill(lease));
+        assertFalse(leases.takePermit(lease));
+        verify(stringRedisTemplate, never()).execute(any(RedisScript.class), any(), any());
+    }
+}
@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    public void concurrentCallersShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<String> first = executor.submit(() -> singleFlight.execute("k", () -> {
+                loads.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "v";
+            }));
+            started.await();
+            Future<String> second = executor.submit(() -> singleFlight.execute("k", () -> {
+                loads.incrementAndGet();
+                return "other";
+            }));
+            // 等第二个调用进入等待
+            Thread.sleep(50);
+            release.countDown();
+            assertEquals("v", first.get(5, TimeUnit.SECONDS));
+            assertEquals("v", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keyIsReleasedAfterLoad() {
+        assertEquals("a", singleFlight.execute("k", () -> "a"));
+        assertEquals("b", singleFlight.execute("k", () -> "b"));
+    }
+
+    @Test
+    public void errorIsPropagatedToWaiters() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AssertionError error = new AssertionError("boom");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Object> first = executor.submit(() -> singleFlight.execute("k", () -> {
+                started.countDown();
+                await(release);
+                throw error;
+            }));
+            started.await();
+            Future<Object> second = executor.submit(() -> singleFlight.execute("k", () -> "other"));
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<Object> future : Arrays.asList(first, second)) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException e) {
+                    assertSame(error, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}